@@ -0,0 +1,414 @@
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// The count, sum, minimum, maximum and average of the values in a column of a
+// table, or of a group of its rows. Computed by splitting the table's slots
+// into ranges that are aggregated in parallel, then merging the results.
+//
+// Sums are only kept for integer columns, as a long until they no longer fit
+// in one. Blank values are counted as rows, but are otherwise ignored. The
+// table must not be changed while aggregating.
+public class Aggregate {
+    // Ranges of slots smaller than this are aggregated without splitting further.
+    private static final int MIN_RANGE = 1 << 15;
+
+    private final Type type;
+    private final boolean integer;
+    private long count;
+    private long values;
+    private long sum;
+    // The sum once it no longer fits in a long, otherwise null.
+    private BigInteger bigSum;
+    // Kept as longs for integer values that fit in one, of which there are
+    // ints, and Strings otherwise.
+    private long ints;
+    private long minInt;
+    private long maxInt;
+    private String min;
+    private String max;
+
+    private Aggregate(Type type) {
+        this.type = type;
+        integer = type.integer();
+    }
+
+    // Returns the number of rows.
+    public long count() {
+        return count;
+    }
+
+    // Returns the number of rows with a value that isn't blank.
+    public long values() {
+        return values;
+    }
+
+    public long sum() {
+        if (!integer) {
+            throw new Error("Column is not an integer column.");
+        } else if (bigSum != null) {
+            throw new Error("Sum too large.");
+        }
+
+        return sum;
+    }
+
+    // Returns the sum of an integer column, however large.
+    public BigInteger bigSum() {
+        if (!integer) {
+            throw new Error("Column is not an integer column.");
+        }
+
+        return bigSum != null ? bigSum : BigInteger.valueOf(sum);
+    }
+
+    // Returns the smallest value, as ordered by the column's type, or null if
+    // there are no values.
+    public String min() {
+        if (ints > 0) {
+            String ret = Long.toString(minInt);
+            return min == null || type.compare(ret, min) <= 0 ? ret : min;
+        }
+
+        return min;
+    }
+
+    public String max() {
+        if (ints > 0) {
+            String ret = Long.toString(maxInt);
+            return max == null || type.compare(ret, max) >= 0 ? ret : max;
+        }
+
+        return max;
+    }
+
+    // Returns the mean of the values, or NaN if there are none or the column
+    // isn't an integer column.
+    public double avg() {
+        if (!integer || values == 0) {
+            return Double.NaN;
+        } else if (bigSum != null) {
+            return bigSum.doubleValue() / values;
+        }
+
+        return (double)sum / values;
+    }
+
+    private void add(String value) {
+        count++;
+
+        if (value.isEmpty()) {
+            return;
+        }
+
+        if (integer) {
+            long n;
+
+            try {
+                n = Long.parseLong(value);
+            } catch (NumberFormatException nfe) {
+                // Too large for a long, so only the sum is kept differently.
+                addSum(new BigInteger(value));
+                addString(value);
+                return;
+            }
+
+            add(n);
+            return;
+        }
+
+        addString(value);
+    }
+
+    // Adds a value that isn't blank and is kept as a String.
+    private void addString(String value) {
+        values++;
+
+        if (min == null || type.compare(value, min) < 0) {
+            min = value;
+        }
+        if (max == null || type.compare(value, max) > 0) {
+            max = value;
+        }
+    }
+
+    // Adds a value of an integer column that isn't blank.
+    private void add(long value) {
+        if (bigSum != null) {
+            bigSum = bigSum.add(BigInteger.valueOf(value));
+        } else {
+            try {
+                sum = Math.addExact(sum, value);
+            } catch (ArithmeticException ae) {
+                bigSum = BigInteger.valueOf(sum).add(BigInteger.valueOf(value));
+            }
+        }
+
+        if (ints == 0 || value < minInt) {
+            minInt = value;
+        }
+        if (ints == 0 || value > maxInt) {
+            maxInt = value;
+        }
+
+        ints++;
+        values++;
+    }
+
+    private void addSum(BigInteger value) {
+        bigSum = bigSum().add(value);
+    }
+
+    private void merge(Aggregate other) {
+        if (other.ints > 0) {
+            if (ints == 0 || other.minInt < minInt) {
+                minInt = other.minInt;
+            }
+            if (ints == 0 || other.maxInt > maxInt) {
+                maxInt = other.maxInt;
+            }
+        }
+
+        count += other.count;
+        values += other.values;
+        ints += other.ints;
+
+        if (integer) {
+            if (bigSum == null && other.bigSum == null) {
+                try {
+                    sum = Math.addExact(sum, other.sum);
+                } catch (ArithmeticException ae) {
+                    addSum(BigInteger.valueOf(other.sum));
+                }
+            } else {
+                addSum(other.bigSum());
+            }
+        }
+
+        if (other.min != null && (min == null || type.compare(other.min, min) < 0)) {
+            min = other.min;
+        }
+        if (other.max != null && (max == null || type.compare(other.max, max) > 0)) {
+            max = other.max;
+        }
+    }
+
+    // Aggregates the given column over the whole table.
+    public static Aggregate of(Table t, int col) {
+        Aggregate ret = of(t, col, -1).get("");
+        return ret == null ? new Aggregate(t.type(col)) : ret;
+    }
+
+    // Aggregates the given column for each value of the group column, in order
+    // of the group column's type. A group column of -1 puts all rows in one
+    // group, with a blank value.
+    public static Map<String, Aggregate> of(Table t, int col, int groupCol) {
+        t.type(col);
+        if (groupCol != -1) {
+            t.type(groupCol);
+        }
+
+        HashMap<String, Aggregate> groups = null;
+        // The read lock is held for the whole pass, so the slots can't move
+        // under the tasks. They read without locking, which is safe while it's held.
+        long stamp = t.readLock();
+
+        try {
+            if (t.format() != Table.FORMAT.PAGED) {
+                groups = ForkJoinPool.commonPool().invoke(new Task(t, col, groupCol, 0, t.slots()));
+            }
+        } catch (Error e) {
+            // The pool may rethrow a copy wrapping the original, so report the original.
+            throw e.getCause() instanceof Error ? (Error)e.getCause() : e;
+        } finally {
+            t.unlockRead(stamp);
+        }
+
+        if (groups == null) {
+            // Paged tables have no slots to split, so are read in one pass.
+            groups = new HashMap<String, Aggregate>();
+            Iterator<Record> it = t.scan();
+
+            while (it.hasNext()) {
+                Record r = it.next();
+                group(groups, t, col, groupCol, r).add(r.field(col));
+            }
+        }
+
+        TreeMap<String, Aggregate> ret;
+        if (groupCol == -1) {
+            ret = new TreeMap<String, Aggregate>();
+        } else {
+            ret = new TreeMap<String, Aggregate>(t.type(groupCol));
+        }
+
+        // Values such as "7" and "007" are equal in an integer column, so merge them.
+        for (Map.Entry<String, Aggregate> e : groups.entrySet()) {
+            Aggregate group = ret.get(e.getKey());
+
+            if (group == null) {
+                ret.put(e.getKey(), e.getValue());
+            } else {
+                group.merge(e.getValue());
+            }
+        }
+
+        return ret;
+    }
+
+    // Returns the group the record belongs in, adding it if needed.
+    private static Aggregate group(HashMap<String, Aggregate> groups, Table t, int col,
+                                   int groupCol, Record r) {
+        String key = groupCol == -1 ? "" : r.field(groupCol);
+        Aggregate group = groups.get(key);
+
+        if (group == null) {
+            group = new Aggregate(t.type(col));
+            groups.put(key, group);
+        }
+
+        return group;
+    }
+
+    private static class Task extends RecursiveTask<HashMap<String, Aggregate>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Table table;
+        private final int col;
+        private final int groupCol;
+        private final int from;
+        private final int to;
+
+        public Task(Table table, int col, int groupCol, int from, int to) {
+            this.table = table;
+            this.col = col;
+            this.groupCol = groupCol;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected HashMap<String, Aggregate> compute() {
+            if (to - from > MIN_RANGE) {
+                int mid = (from + to) >>> 1;
+                Task left = new Task(table, col, groupCol, from, mid);
+                Task right = new Task(table, col, groupCol, mid, to);
+
+                right.fork();
+                HashMap<String, Aggregate> ret = left.compute();
+
+                for (Map.Entry<String, Aggregate> e : right.join().entrySet()) {
+                    Aggregate mine = ret.get(e.getKey());
+
+                    if (mine == null) {
+                        ret.put(e.getKey(), e.getValue());
+                    } else {
+                        mine.merge(e.getValue());
+                    }
+                }
+
+                return ret;
+            }
+
+            HashMap<String, Aggregate> ret = new HashMap<String, Aggregate>();
+            Column column = table.column(col);
+            IntColumn ints = column instanceof IntColumn ? (IntColumn)column : null;
+            Aggregate group = null;
+
+            for (int slot = from; slot < to; slot++) {
+                Record r = table.record(slot);
+
+                if (r == null) {
+                    continue;
+                }
+
+                if (group == null || groupCol != -1) {
+                    group = group(ret, table, col, groupCol, r);
+                }
+
+                // Read integers straight from the column store where possible.
+                if (ints != null && r.stored(col) == null) {
+                    group.count++;
+
+                    if (!ints.blank(slot)) {
+                        group.add(ints.get(slot));
+                    }
+                } else {
+                    group.add(r.field(col));
+                }
+            }
+
+            return ret;
+        }
+    }
+
+    public static void main(String[] args) {
+        Database db = new Database();
+        Type[] types = {
+            Type.type(db, "string"),
+            Type.type(db, "integer"),
+            Type.type(db, "tag(odd,even)")
+        };
+        Table t = new Table(db, "aggregate_test", new String[] {"Key", "Num", "Parity"}, types);
+
+        for (int i = 1; i <= 100000; i++) {
+            new Record(t, new String[] {"k" + i, Integer.toString(i), i % 2 == 0 ? "even" : "odd"});
+        }
+        new Record(t, new String[] {"blank", "", ""});
+        new Record(t, new String[] {"padded", "007", "odd"});
+
+        Aggregate all = Aggregate.of(t, 1);
+        if (all.count() != 100002 || all.values() != 100001 || all.sum() != 5000050007L
+            || !"1".equals(all.min()) || !"100000".equals(all.max())) {
+            throw new Error("Aggregate incorrect.");
+        }
+
+        Map<String, Aggregate> groups = Aggregate.of(t, 1, 2);
+        if (groups.size() != 3 || !"".equals(groups.keySet().iterator().next())) {
+            throw new Error("Groups incorrect.");
+        }
+        if (groups.get("even").sum() != 2500050000L || groups.get("even").avg() != 50001.0
+            || groups.get("odd").count() != 50001) {
+            throw new Error("Group aggregate incorrect.");
+        }
+
+        Aggregate keys = Aggregate.of(t, 0);
+        if (!"blank".equals(keys.min()) || !"padded".equals(keys.max()) || !Double.isNaN(keys.avg())) {
+            throw new Error("String aggregate incorrect.");
+        }
+
+        // Values too large to sum as a long only stop sum() from working.
+        Table big = new Table(db, "aggregate_big", new String[] {"Key", "Num"},
+                              new Type[] {types[0], types[1]});
+        String[] nums = {"9223372036854775807", "1", "99999999999999999999", "-5", ""};
+        for (int i = 0; i < nums.length; i++) {
+            new Record(big, new String[] {"b" + i, nums[i]});
+        }
+
+        Aggregate wide = Aggregate.of(big, 1);
+        BigInteger total = new BigInteger("109223372036854775802");
+        if (wide.count() != 5 || wide.values() != 4 || !"-5".equals(wide.min())
+            || !"99999999999999999999".equals(wide.max()) || !total.equals(wide.bigSum())
+            || wide.avg() != total.doubleValue() / 4) {
+            throw new Error("Aggregate of large values incorrect.");
+        }
+
+        boolean fail = false;
+        try {
+            wide.sum();
+        } catch (Error e) {
+            fail = e.getMessage().equals("Sum too large.");
+        }
+
+        if (!fail) {
+            throw new Error("Sum too large for a long returned.");
+        }
+
+        if (!Double.isNaN(Aggregate.of(big, 1, 0).get("b4").avg())) {
+            throw new Error("Average of no values not NaN.");
+        }
+    }
+}
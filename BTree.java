@@ -0,0 +1,570 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+// A B+tree kept in the pages of its own file, mapping String keys to longs.
+// Keys are ordered by a comparator, with keys it considers equal ordered as
+// Strings, so "7" and "007" in an integer column are distinct keys, but
+// next to each other.
+//
+// Page 0 holds the root page number, the number of keys, a stamp matching the
+// tree to the file it indexes, and whether the tree was written out completely.
+// Every other page is a node, which is read whole and decoded:
+//
+//     leaf:     1, key count (4 bytes), next leaf (8 bytes),
+//               then each key as a byte count (2 bytes), UTF-8, and its value.
+//     internal: 0, key count (4 bytes), first child (8 bytes),
+//               then each key as above and the child holding keys from it on.
+//
+// Nodes split when they outgrow a page. Deleted keys are simply removed from
+// their leaf, so nodes are never merged; an emptied leaf stays in the chain.
+public class BTree {
+    private static final int MAGIC = 0x44424254;
+    private static final int VERSION = 1;
+    // Long enough for most keys, while leaving room for several in a node.
+    public static final int MAX_KEY = 2000;
+    private static final int NODE_HEADER = 13;
+
+    private final BufferPool pool;
+    private final Comparator<String> order;
+    private long root;
+    private long count;
+    private long stamp;
+    private boolean clean;
+
+    private BTree(BufferPool pool, Comparator<String> order) {
+        this.pool = pool;
+        this.order = order;
+    }
+
+    // Opens an existing tree. Check clean() and stamp() before trusting it.
+    public static BTree open(File file, Comparator<String> order, int poolPages) throws IOException {
+        return open(new BufferPool(new PageFile(file), poolPages), order);
+    }
+
+    // Opens an existing tree, keeping its pages in the frames of another
+    // file's pool.
+    public static BTree open(File file, Comparator<String> order, BufferPool shared) throws IOException {
+        return open(shared.share(new PageFile(file)), order);
+    }
+
+    private static BTree open(BufferPool pool, Comparator<String> order) {
+        BTree t = new BTree(pool, order);
+
+        if (t.pool.pages() < 2) {
+            return t;
+        }
+
+        BufferPool.Page meta = t.pool.get(0);
+        try {
+            ByteBuffer buf = meta.data();
+
+            if (buf.getInt(0) == MAGIC && buf.getInt(4) == VERSION) {
+                t.root = buf.getLong(8);
+                t.count = buf.getLong(16);
+                t.stamp = buf.getLong(24);
+                t.clean = buf.get(32) != 0;
+            }
+        } finally {
+            t.pool.release(meta);
+        }
+
+        return t;
+    }
+
+    // Creates a new, empty tree, replacing anything in the file.
+    public static BTree create(File file, Comparator<String> order, long stamp, int poolPages)
+        throws IOException {
+        replace(file);
+        return create(new BufferPool(new PageFile(file), poolPages), order, stamp);
+    }
+
+    // Creates a new, empty tree, keeping its pages in the frames of another
+    // file's pool.
+    public static BTree create(File file, Comparator<String> order, long stamp, BufferPool shared)
+        throws IOException {
+        replace(file);
+        return create(shared.share(new PageFile(file)), order, stamp);
+    }
+
+    private static void replace(File file) {
+        if (file.exists() && !file.delete()) {
+            throw new Error("Failed to replace index file.");
+        }
+    }
+
+    private static BTree create(BufferPool pool, Comparator<String> order, long stamp) {
+        BTree t = new BTree(pool, order);
+        t.pool.release(t.pool.allocate());
+
+        Node leaf = t.node(true);
+        t.write(leaf);
+        t.root = leaf.page;
+        t.stamp = stamp;
+        t.clean = false;
+        t.writeMeta();
+        return t;
+    }
+
+    // Returns true if the tree was written out completely when last flushed,
+    // with no changes made since.
+    public boolean clean() {
+        return clean;
+    }
+
+    // Returns the stamp of the file the tree indexes.
+    public long stamp() {
+        return stamp;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    // Returns the value of the key, or -1 if it isn't in the tree, so -1
+    // can't be told apart from a missing key.
+    public long get(String key) {
+        Node n = read(root);
+
+        while (!n.leaf) {
+            n = read(n.values.get(child(n, key)));
+        }
+
+        int i = find(n, key);
+        return i >= 0 ? n.values.get(i) : -1;
+    }
+
+    // Sets the value of a key, adding the key if needed.
+    public void put(String key, long value) {
+        if (key.getBytes(StandardCharsets.UTF_8).length > MAX_KEY) {
+            throw new Error("Key too long for index.");
+        }
+
+        changing();
+        Node split = put(read(root), key, value);
+
+        if (split != null) {
+            // The root split, so the tree grows a level.
+            Node top = node(false);
+            top.values.add(root);
+            top.keys.add(split.keys.get(0));
+            top.values.add(split.page);
+
+            // An internal node's first key moves up rather than staying in it.
+            if (!split.leaf) {
+                split.keys.remove(0);
+                split.values.remove(0);
+                write(split);
+            }
+
+            write(top);
+            root = top.page;
+            writeMeta();
+        }
+    }
+
+    // Puts the key in the subtree under the node. If the node had to split,
+    // returns the new right half, whose first key is the one to separate them.
+    // For an internal node, that key and its child are removed by the caller.
+    private Node put(Node n, String key, long value) {
+        if (n.leaf) {
+            int i = find(n, key);
+
+            if (i >= 0) {
+                n.values.set(i, value);
+                write(n);
+                return null;
+            }
+
+            n.keys.add(-i - 1, key);
+            n.values.add(-i - 1, value);
+            count++;
+        } else {
+            int i = child(n, key);
+            Node split = put(read(n.values.get(i)), key, value);
+
+            if (split == null) {
+                return null;
+            }
+
+            n.keys.add(i, split.keys.get(0));
+            n.values.add(i + 1, split.page);
+
+            if (!split.leaf) {
+                split.keys.remove(0);
+                split.values.remove(0);
+                write(split);
+            }
+        }
+
+        if (size(n) <= PageFile.PAGE_SIZE) {
+            write(n);
+            return null;
+        }
+
+        return split(n);
+    }
+
+    // Splits a node in two by size, returning the right half. For an internal
+    // node the right half is given an extra first key and child, being the key
+    // that moves up to the parent and the child to its right.
+    private Node split(Node n) {
+        int half = size(n) / 2;
+        int used = NODE_HEADER;
+        int mid = 0;
+
+        while (mid < n.keys.size() - 1 && used < half) {
+            used += entry(n.keys.get(mid));
+            mid++;
+        }
+
+        Node right = node(n.leaf);
+
+        if (n.leaf) {
+            right.keys.addAll(n.keys.subList(mid, n.keys.size()));
+            right.values.addAll(n.values.subList(mid, n.values.size()));
+            right.next = n.next;
+            n.next = right.page;
+            n.keys.subList(mid, n.keys.size()).clear();
+            n.values.subList(mid, n.values.size()).clear();
+        } else {
+            // Keys mid onwards go right, with the children after them. The
+            // child before key mid is given as its value, to be dropped.
+            right.keys.addAll(n.keys.subList(mid, n.keys.size()));
+            right.values.addAll(n.values.subList(mid, n.values.size()));
+            n.keys.subList(mid, n.keys.size()).clear();
+            n.values.subList(mid + 1, n.values.size()).clear();
+        }
+
+        write(n);
+        write(right);
+        return right;
+    }
+
+    // Removes a key, returning its value, or -1 if it wasn't in the tree.
+    public long remove(String key) {
+        Node n = read(root);
+
+        while (!n.leaf) {
+            n = read(n.values.get(child(n, key)));
+        }
+
+        int i = find(n, key);
+        if (i < 0) {
+            return -1;
+        }
+
+        changing();
+        long value = n.values.remove(i);
+        n.keys.remove(i);
+        write(n);
+        count--;
+        return value;
+    }
+
+    // Returns the keys from the first the comparator doesn't put before lo to
+    // the last it doesn't put after hi, in order, with their values, read a leaf
+    // at a time. Either bound may be null to leave that end open.
+    public Iterator<Map.Entry<String, Long>> range(final String lo, final String hi) {
+        Node n = read(root);
+
+        while (!n.leaf) {
+            int i = 0;
+
+            // Keys in the child before a separator are all below it.
+            while (lo != null && i < n.keys.size() && order.compare(n.keys.get(i), lo) < 0) {
+                i++;
+            }
+
+            n = read(n.values.get(i));
+        }
+
+        final Node first = n;
+
+        return new Iterator<Map.Entry<String, Long>>() {
+            private Node leaf = first;
+            private int next = 0;
+            private Map.Entry<String, Long> found;
+
+            public boolean hasNext() {
+                while (found == null && leaf != null) {
+                    if (next == leaf.keys.size()) {
+                        leaf = leaf.next < 0 ? null : read(leaf.next);
+                        next = 0;
+                        continue;
+                    }
+
+                    String key = leaf.keys.get(next);
+                    long value = leaf.values.get(next++);
+
+                    if (hi != null && order.compare(key, hi) > 0) {
+                        leaf = null;
+                    } else if (lo == null || order.compare(key, lo) >= 0) {
+                        found = new AbstractMap.SimpleImmutableEntry<String, Long>(key, value);
+                    }
+                }
+
+                return found != null;
+            }
+
+            public Map.Entry<String, Long> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                Map.Entry<String, Long> ret = found;
+                found = null;
+                return ret;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Notes in the file that the tree is being changed, before the first change
+    // since it was last flushed, so a crash part way is noticed when reopened.
+    // Called by the tree itself, and by the owner of the indexed file before
+    // changing it.
+    public void changing() {
+        if (clean) {
+            clean = false;
+            writeMeta();
+            pool.flush();
+        }
+    }
+
+    // Writes every change to the file, marking the tree complete once the
+    // rest is on disk.
+    public void flush() {
+        pool.flush();
+
+        if (!clean) {
+            clean = true;
+            writeMeta();
+            pool.flush();
+        }
+    }
+
+    public void close() {
+        flush();
+        pool.close();
+    }
+
+    private void writeMeta() {
+        BufferPool.Page meta = pool.get(0);
+
+        try {
+            ByteBuffer buf = meta.data();
+            buf.putInt(0, MAGIC);
+            buf.putInt(4, VERSION);
+            buf.putLong(8, root);
+            buf.putLong(16, count);
+            buf.putLong(24, stamp);
+            buf.put(32, (byte)(clean ? 1 : 0));
+            meta.dirty();
+        } finally {
+            pool.release(meta);
+        }
+    }
+
+    // Compares keys by the comparator, then as Strings.
+    private int compare(String a, String b) {
+        int c = order.compare(a, b);
+        return c != 0 ? c : a.compareTo(b);
+    }
+
+    // Returns the index of the key in a leaf, or -(insertion point) - 1.
+    private int find(Node n, String key) {
+        return Collections.binarySearch(n.keys, key, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return BTree.this.compare(a, b);
+            }
+        });
+    }
+
+    // Returns the index of the child of an internal node to look for a key in.
+    private int child(Node n, String key) {
+        int lo = 0;
+        int hi = n.keys.size();
+
+        // Find the number of keys not after the given one.
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if (compare(n.keys.get(mid), key) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+
+    private static int entry(String key) {
+        return 2 + key.getBytes(StandardCharsets.UTF_8).length + 8;
+    }
+
+    private static int size(Node n) {
+        int size = NODE_HEADER;
+
+        for (String key : n.keys) {
+            size += entry(key);
+        }
+
+        return size;
+    }
+
+    // Returns a new node in a new page.
+    private Node node(boolean leaf) {
+        BufferPool.Page p = pool.allocate();
+        pool.release(p);
+
+        Node n = new Node();
+        n.page = p.number();
+        n.leaf = leaf;
+        return n;
+    }
+
+    private Node read(long page) {
+        BufferPool.Page p = pool.get(page);
+
+        try {
+            ByteBuffer buf = p.data();
+            Node n = new Node();
+            n.page = page;
+            n.leaf = buf.get(0) == 1;
+
+            int keys = buf.getInt(1);
+            long first = buf.getLong(5);
+            int pos = NODE_HEADER;
+
+            if (n.leaf) {
+                n.next = first;
+            } else {
+                n.values.add(first);
+            }
+
+            for (int i = 0; i < keys; i++) {
+                int len = buf.getChar(pos);
+                n.keys.add(new String(buf.array(), pos + 2, len, StandardCharsets.UTF_8));
+                n.values.add(buf.getLong(pos + 2 + len));
+                pos += 2 + len + 8;
+            }
+
+            return n;
+        } catch (RuntimeException re) {
+            throw new Error("Index file corrupt.", re);
+        } finally {
+            pool.release(p);
+        }
+    }
+
+    private void write(Node n) {
+        BufferPool.Page p = pool.get(n.page);
+
+        try {
+            ByteBuffer buf = p.data();
+            buf.clear();
+            buf.put((byte)(n.leaf ? 1 : 0));
+            buf.putInt(n.keys.size());
+            buf.putLong(n.leaf ? n.next : n.values.get(0));
+
+            for (int i = 0; i < n.keys.size(); i++) {
+                byte[] key = n.keys.get(i).getBytes(StandardCharsets.UTF_8);
+                buf.putChar((char)key.length);
+                buf.put(key);
+                buf.putLong(n.values.get(n.leaf ? i : i + 1));
+            }
+
+            buf.clear();
+            p.dirty();
+        } finally {
+            pool.release(p);
+        }
+    }
+
+    // A node decoded from its page. An internal node's values are its children,
+    // one more than its keys.
+    private static class Node {
+        private long page;
+        private boolean leaf;
+        private long next = -1;
+        private final ArrayList<String> keys = new ArrayList<String>();
+        private final ArrayList<Long> values = new ArrayList<Long>();
+    }
+
+    public static void main(String[] args) {
+        File f = new File("btree_test.idx");
+        Database db = new Database();
+        Type ints = Type.type(db, "integer");
+
+        try {
+            BTree t = create(f, ints, 42, 8);
+
+            // Enough keys, some long, to split leaves and internal nodes.
+            char[] pad = new char[300];
+            Arrays.fill(pad, '0');
+            for (int i = 0; i < 20000; i++) {
+                t.put(Integer.toString(i * 2), i);
+            }
+            for (int i = 0; i < 100; i++) {
+                t.put(new String(pad) + (i * 20), -i);
+            }
+            for (int i = 0; i < 20000; i += 3) {
+                t.remove(Integer.toString(i * 2));
+            }
+            t.close();
+
+            t = open(f, ints, 8);
+            if (!t.clean() || t.stamp() != 42 || t.count() != 20000 - 6667 + 100) {
+                throw new Error("Index meta read incorrectly.");
+            }
+            if (t.get("2") != 1 || t.get("0") != -1 || t.get("3") != -1
+                || t.get(new String(pad) + "40") != -2) {
+                throw new Error("Index lookup incorrect.");
+            }
+
+            // Padded keys sort with the number they equal, after it as Strings.
+            Iterator<Map.Entry<String, Long>> it = t.range("38", "41");
+            if (!"38".equals(it.next().getKey()) || it.next().getValue() != -2
+                || !"40".equals(it.next().getKey()) || it.hasNext()) {
+                throw new Error("Index range incorrect.");
+            }
+
+            String last = null;
+            int count = 0;
+            for (it = t.range(null, null); it.hasNext(); count++) {
+                String key = it.next().getKey();
+                if (last != null && t.compare(last, key) >= 0) {
+                    throw new Error("Index keys out of order.");
+                }
+                last = key;
+            }
+            if (count != t.count()) {
+                throw new Error("Index scan missed keys.");
+            }
+
+            t.put("1", 1);
+            t.pool.close();
+            if (open(f, ints, 8).clean()) {
+                throw new Error("Unflushed index reported clean.");
+            }
+        } catch (IOException ioe) {
+            throw new Error("Index testing failed.", ioe);
+        } finally {
+            f.delete();
+        }
+    }
+}
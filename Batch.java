@@ -0,0 +1,244 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+// Applies a script of changes without any prompts. Each line of the script is
+// a record in the table file format, naming a command, a table and a key,
+// followed by the values the command needs:
+//
+//     add,<table>,<key>,<value>,...
+//     replace,<table>,<key>,<value>,...
+//     edit,<table>,<key>,<column>,<value>
+//     delete,<table>,<key>
+//
+// Blank lines and lines starting with '#' are skipped. Every change is made in
+// one transaction, kept through each table's log once committed. A line
+// that can't be applied, given the lines before it, is reported and skipped,
+// without stopping the rest.
+public class Batch {
+    private final Database db;
+    private final PrintStream out;
+
+    public Batch(Database db, PrintStream out) {
+        this.db = db;
+        this.out = out;
+    }
+
+    // Runs the script read from the given stream, and returns the number of
+    // lines that couldn't be applied. If the changes conflict with others made
+    // meanwhile none are applied.
+    public int run(InputStream in) {
+        FieldReader reader = new FieldReader(in);
+        LinkedHashSet<Table> touched = new LinkedHashSet<Table>();
+        Transaction tx = db.begin();
+        int line = 0;
+        int applied = 0;
+        int rejected = 0;
+
+        try {
+            String[] fields;
+
+            // A value may hold an escaped newline, so count the lines it spans.
+            while ((fields = reader.next()) != null) {
+                int start = ++line;
+                for (String field : fields) {
+                    line += count(field, '\n');
+                }
+
+                if ((fields.length == 1 && fields[0].isEmpty()) || fields[0].startsWith("#")) {
+                    continue;
+                }
+
+                try {
+                    touched.add(apply(tx, fields));
+                    applied++;
+                } catch (Error e) {
+                    out.println("Line " + start + ": " + e.getMessage());
+                    rejected++;
+                }
+            }
+        } catch (Error e) {
+            // Don't leave the transaction's snapshot in use.
+            tx.rollback();
+            throw e;
+        }
+
+        // Every line was checked as it was read, including the rows it refers
+        // to, so only a conflicting change made meanwhile can fail here.
+        try {
+            tx.commit();
+        } catch (Error e) {
+            out.println("No changes applied: " + e.getMessage());
+            return applied + rejected;
+        }
+
+        out.println("Applied " + applied + " changes to " + touched.size() + " table(s), rejected " + rejected + ".");
+        return rejected;
+    }
+
+    private static int count(String s, char c) {
+        int n = 0;
+
+        for (int i = s.indexOf(c); i != -1; i = s.indexOf(c, i + 1)) {
+            n++;
+        }
+
+        return n;
+    }
+
+    // Makes the change one line asks for, and returns the table changed.
+    private Table apply(Transaction tx, String[] fields) {
+        if (fields.length < 3) {
+            throw new Error("Expected a command, table and key.");
+        }
+
+        String cmd = fields[0];
+        Table t = db.table(fields[1]);
+        String key = fields[2];
+
+        if (t == null) {
+            throw new Error("Table " + fields[1] + " does not exist.");
+        }
+
+        if (cmd.equalsIgnoreCase("add")) {
+            tx.insert(t, Arrays.copyOfRange(fields, 2, fields.length));
+        } else if (cmd.equalsIgnoreCase("replace")) {
+            tx.replace(t, Arrays.copyOfRange(fields, 2, fields.length));
+        } else if (cmd.equalsIgnoreCase("edit")) {
+            if (fields.length != 5) {
+                throw new Error("Expected a column and a value.");
+            }
+
+            int col = t.column(fields[3]);
+            if (col == -1) {
+                throw new Error("No such column: " + fields[3]);
+            }
+
+            tx.update(t, key, col, fields[4]);
+        } else if (cmd.equalsIgnoreCase("delete")) {
+            if (fields.length != 3) {
+                throw new Error("Expected only a key.");
+            }
+
+            tx.delete(t, key);
+        } else {
+            throw new Error("No such command: " + cmd);
+        }
+
+        return t;
+    }
+
+    public static void main(String[] args) {
+        Database db = new Database();
+        Type[] types = {Type.type(db, "string"), Type.type(db, "integer"), Type.type(db, "string")};
+        Table t = new Table(db, "batch_test", new String[] {"Key", "Num", "Note"}, types);
+        new Record(t, new String[] {"a", "1", "first"});
+        new Record(t, new String[] {"b", "2", "second"});
+        t.store();
+
+        String script =
+            "# nightly load\n" +
+            "add,batch_test,c,3,third\n" +
+            "add,batch_test,d,4\n" +
+            "edit,batch_test,a,Num,10\n" +
+            "replace,batch_test,b,20,two\\, again\n" +
+            "delete,batch_test,d\n" +
+            "\n" +
+            "add,batch_test,e,not a number,x\n" +
+            "add,batch_test,a,1,taken\n" +
+            "edit,batch_test,zz,Num,1\n" +
+            "edit,batch_test,a,Missing,1\n" +
+            "replace,batch_test,b,bad,two\n" +
+            "add,no_such_table,k\n" +
+            "frob,batch_test,a\n" +
+            "add,batch_test,f,6,split\\\nline\n" +
+            "add,batch_test,g,7,last";
+
+        try {
+            Charset utf8 = Charset.forName("UTF-8");
+            ByteArrayOutputStream report = new ByteArrayOutputStream();
+            Batch batch = new Batch(db, new PrintStream(report, true, "UTF-8"));
+            int rejected = batch.run(new ByteArrayInputStream(script.getBytes(utf8)));
+            String lines = new String(report.toByteArray(), utf8);
+
+            if (rejected != 7 || !lines.contains("Line 8: ") || !lines.contains("Line 14: ")
+                    || !lines.contains("Applied 7 changes to 1 table(s), rejected 7.")) {
+                throw new Error("Rejected lines reported incorrectly.");
+            }
+
+            // The changes were stored, so a fresh database sees them.
+            Table stored = new Database().table("batch_test");
+            String[][] expected = {
+                {"a", "10", "first"},
+                {"b", "20", "two, again"},
+                {"c", "3", "third"},
+                {"f", "6", "split\nline"},
+                {"g", "7", "last"}
+            };
+
+            if (stored.rows() != expected.length || stored.select("d") != null || db.snapshots()) {
+                throw new Error("Batch changes incorrect.");
+            }
+
+            for (String[] row : expected) {
+                Record r = stored.select(row[0]);
+
+                for (int col = 0; col < row.length; col++) {
+                    if (!row[col].equals(r.field(col))) {
+                        throw new Error("Batch changes incorrect.");
+                    }
+                }
+            }
+
+            stored.close();
+
+            // References are checked as each line is read, counting the lines
+            // before it, so a bad line is skipped and the rest still applied.
+            Table par = new Table(db, "batch_par", new String[] {"Key", "Name"});
+            new Record(par, new String[] {"p1", "x"});
+            par.store();
+            types = new Type[] {Type.type(db, "string"), Type.type(db, "ref(batch_par)")};
+            Table ch = new Table(db, "batch_ch", new String[] {"Key", "Par"}, types);
+            new Record(ch, new String[] {"c1", "p1"});
+            ch.store();
+
+            script =
+                "add,batch_par,p2,y\n" +
+                "add,batch_ch,c2,p2\n" +
+                "delete,batch_par,p1\n" +
+                "delete,batch_ch,c1\n" +
+                "delete,batch_par,p1\n" +
+                "add,batch_ch,c3,p1\n" +
+                "edit,batch_par,p2,Key,p3\n";
+            report.reset();
+            rejected = batch.run(new ByteArrayInputStream(script.getBytes(utf8)));
+            lines = new String(report.toByteArray(), utf8);
+
+            if (rejected != 3 || !lines.contains("Line 3: Record is still referenced.")
+                    || !lines.contains("Line 6: Value not of type ref(batch_par)")
+                    || !lines.contains("Line 7: Record is still referenced.")) {
+                throw new Error("Rejected references reported incorrectly.");
+            }
+
+            if (par.select("p1") != null || par.select("p2") == null || ch.select("c1") != null
+                    || !"p2".equals(ch.select("c2").field(1)) || ch.select("c3") != null) {
+                throw new Error("Batch references incorrect.");
+            }
+        } catch (UnsupportedEncodingException uee) {
+            throw new Error("UTF-8 not supported.", uee);
+        } finally {
+            t.close();
+            for (String name : new String[] {"batch_test", "batch_par", "batch_ch"}) {
+                new File(name + ".txt").delete();
+                new File(name + ".log").delete();
+            }
+            new File("db.commits").delete();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+// Caches a fixed number of the pages of a page file in memory. Pages are pinned
+// while in use, and once the pool is full an unpinned page is evicted to make
+// room, chosen by the clock algorithm: the hand sweeps the frames, sparing each
+// page used since it last passed once. Changed pages are written back to the
+// file when evicted or flushed. The pool can be shared between threads reading
+// the file, but a page's contents are only guarded by the caller.
+//
+// A pool for another file can share the frames of this one, so the pages of
+// both files compete for the same memory.
+public class BufferPool {
+    private final PageFile file;
+    // Shared by every pool made by share(), and guards them all.
+    private final Frames frames;
+    // This file's pages held in the frames.
+    private final HashMap<Long, Page> resident;
+
+    public BufferPool(PageFile file, int capacity) {
+        this(file, new Frames(capacity));
+    }
+
+    private BufferPool(PageFile file, Frames frames) {
+        this.file = file;
+        this.frames = frames;
+        resident = new HashMap<Long, Page>();
+    }
+
+    // Returns a pool for the pages of another file, held in this pool's frames.
+    public BufferPool share(PageFile file) {
+        return new BufferPool(file, frames);
+    }
+
+    // Returns the given page, pinned until released.
+    public Page get(long number) {
+        synchronized (frames) {
+            Page p = resident.get(number);
+
+            if (p == null) {
+                p = frame(number);
+
+                try {
+                    file.read(number, p.data);
+                } catch (IOException ioe) {
+                    resident.remove(number);
+                    p.owner = null;
+                    p.number = -1;
+                    throw new Error("Could not read page file.", ioe);
+                }
+            }
+
+            p.pins++;
+            p.used = true;
+            return p;
+        }
+    }
+
+    // Returns a new page of zeros at the end of the file, pinned until released.
+    public Page allocate() {
+        synchronized (frames) {
+            Page p = frame(file.allocate());
+
+            p.data.clear();
+            while (p.data.hasRemaining()) {
+                p.data.put((byte)0);
+            }
+            p.data.clear();
+
+            p.dirty = true;
+            p.pins++;
+            p.used = true;
+            return p;
+        }
+    }
+
+    public void release(Page p) {
+        synchronized (frames) {
+            if (p.pins <= 0) {
+                throw new Error("Page released too many times.");
+            }
+
+            p.pins--;
+        }
+    }
+
+    // Finds a frame for the given page, evicting another page if needed.
+    private Page frame(long number) {
+        Page[] pages = frames.pages;
+        Page p = null;
+
+        // Two sweeps clear every used flag, so a third finding nothing means
+        // every page is pinned.
+        for (int i = 0; i < pages.length * 3 && p == null; i++) {
+            Page candidate = pages[frames.hand];
+
+            if (candidate == null) {
+                candidate = new Page();
+                pages[frames.hand] = candidate;
+                p = candidate;
+            } else if (candidate.pins == 0 && candidate.number < 0) {
+                p = candidate;
+            } else if (candidate.pins == 0 && !candidate.used) {
+                candidate.owner.writeBack(candidate);
+                candidate.owner.resident.remove(candidate.number);
+                p = candidate;
+            } else {
+                candidate.used = false;
+            }
+
+            frames.hand = (frames.hand + 1) % pages.length;
+        }
+
+        if (p == null) {
+            throw new Error("Buffer pool full.");
+        }
+
+        p.owner = this;
+        p.number = number;
+        p.dirty = false;
+        resident.put(number, p);
+        return p;
+    }
+
+    private void writeBack(Page p) {
+        if (p.dirty) {
+            try {
+                file.write(p.number, p.data);
+            } catch (IOException ioe) {
+                throw new Error("Failed to write page file.", ioe);
+            }
+
+            p.dirty = false;
+        }
+    }
+
+    // Writes every changed page of this pool's file back to it, and forces it
+    // to disk.
+    public void flush() {
+        synchronized (frames) {
+            for (Page p : resident.values()) {
+                writeBack(p);
+            }
+
+            try {
+                file.sync();
+            } catch (IOException ioe) {
+                throw new Error("Failed to write page file.", ioe);
+            }
+        }
+    }
+
+    // Closes the file, freeing the frames its pages were in.
+    public void close() {
+        synchronized (frames) {
+            flush();
+
+            for (Page p : resident.values()) {
+                p.owner = null;
+                p.number = -1;
+            }
+
+            resident.clear();
+
+            try {
+                file.close();
+            } catch (IOException ioe) {
+                throw new Error("Failed to close page file.", ioe);
+            }
+        }
+    }
+
+    // Returns the number of pages in the file.
+    public long pages() {
+        synchronized (frames) {
+            return file.pages();
+        }
+    }
+
+    // The frames pages are held in.
+    private static class Frames {
+        private final Page[] pages;
+        private int hand;
+
+        private Frames(int capacity) {
+            if (capacity < 1) {
+                throw new Error("Buffer pool too small.");
+            }
+
+            pages = new Page[capacity];
+        }
+    }
+
+    // A page held in the pool.
+    public static class Page {
+        private final ByteBuffer data;
+        // The pool of the file the page is from, or null if the frame is free.
+        private BufferPool owner;
+        private long number;
+        private int pins;
+        private boolean dirty;
+        // Set each time the page is used, and cleared as the clock hand passes.
+        private boolean used;
+
+        private Page() {
+            data = ByteBuffer.allocate(PageFile.PAGE_SIZE);
+            number = -1;
+        }
+
+        public long number() {
+            return number;
+        }
+
+        public ByteBuffer data() {
+            return data;
+        }
+
+        // Marks the page as changed, to be written back to the file.
+        public void dirty() {
+            dirty = true;
+        }
+    }
+
+    public static void main(String[] args) {
+        File f = new File("pool_test.pag");
+        File g = new File("pool_test_other.pag");
+
+        try {
+            BufferPool pool = new BufferPool(new PageFile(f), 3);
+
+            // Write more pages than fit in the pool, so some are evicted.
+            for (int i = 0; i < 10; i++) {
+                Page p = pool.allocate();
+                p.data().putInt(0, i * 7);
+                pool.release(p);
+            }
+
+            Page first = pool.get(0);
+            if (first.data().getInt(0) != 0 || pool.get(9).data().getInt(0) != 63) {
+                throw new Error("Page read back incorrectly.");
+            }
+
+            // With two pages pinned, the third frame must still be usable.
+            if (pool.get(4).data().getInt(0) != 28) {
+                throw new Error("Evicted page not written back.");
+            }
+
+            boolean fail = true;
+            try {
+                pool.get(5);
+            } catch (Error e) {
+                fail = !e.getMessage().equals("Buffer pool full.");
+            }
+            if (fail) {
+                throw new Error("Pinned page evicted.");
+            }
+
+            pool.close();
+
+            pool = new BufferPool(new PageFile(f), 2);
+            if (pool.pages() != 10 || pool.get(6).data().getInt(0) != 42) {
+                throw new Error("Pages not written to file.");
+            }
+
+            // A pool sharing the frames evicts the other's pages, and each
+            // page is written back to its own file.
+            BufferPool other = pool.share(new PageFile(g));
+            for (int i = 0; i < 4; i++) {
+                Page p = other.allocate();
+                p.data().putInt(0, -i);
+                other.release(p);
+            }
+
+            Page shared = other.get(1);
+            if (shared.data().getInt(0) != -1) {
+                throw new Error("Shared page read back incorrectly.");
+            }
+            other.release(shared);
+
+            other.close();
+            if (g.length() != 4 * PageFile.PAGE_SIZE || pool.get(7).data().getInt(0) != 49) {
+                throw new Error("Shared pages not written to their file.");
+            }
+            pool.close();
+        } catch (IOException ioe) {
+            throw new Error("Buffer pool testing failed.", ioe);
+        } finally {
+            f.delete();
+            g.delete();
+        }
+    }
+}
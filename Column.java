@@ -0,0 +1,16 @@
+// Holds the values of one column of a table in a compact form, indexed by
+// record slot, in place of a String per record. Values the store can't hold
+// are left in the record.
+public abstract class Column {
+    // Makes room for the given number of slots.
+    public abstract void ensure(int slots);
+
+    // Returns the value at the given slot as a String.
+    public abstract String string(int slot);
+
+    // Stores the value at the given slot, returning false if it can't be held.
+    public abstract boolean set(int slot, String value);
+
+    // Copies the value in one slot to another.
+    public abstract void move(int from, int to);
+}
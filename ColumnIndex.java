@@ -0,0 +1,74 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.TreeMap;
+
+// A sorted index of the records in a table by the value in one column, ordered
+// by the column's type. Many records may share a value. The table keeps the
+// index up to date as records are inserted, deleted and changed.
+public class ColumnIndex {
+    private final TreeMap<String, LinkedHashSet<Record>> values;
+
+    public ColumnIndex(Type type) {
+        values = new TreeMap<String, LinkedHashSet<Record>>(type);
+    }
+
+    public void add(Record r, String value) {
+        LinkedHashSet<Record> matches = values.get(value);
+
+        if (matches == null) {
+            matches = new LinkedHashSet<Record>();
+            values.put(value, matches);
+        }
+
+        matches.add(r);
+    }
+
+    public void remove(Record r, String value) {
+        LinkedHashSet<Record> matches = values.get(value);
+
+        if (matches != null) {
+            matches.remove(r);
+
+            if (matches.isEmpty()) {
+                values.remove(value);
+            }
+        }
+    }
+
+    // Returns the records with the given value.
+    public ArrayList<Record> get(String value) {
+        LinkedHashSet<Record> matches = values.get(value);
+
+        if (matches == null) {
+            return new ArrayList<Record>();
+        } else {
+            return new ArrayList<Record>(matches);
+        }
+    }
+
+    // Returns the records with values between lo and hi inclusive, in order of
+    // value. Either bound may be null to leave that end open.
+    public ArrayList<Record> range(String lo, String hi) {
+        Collection<LinkedHashSet<Record>> found;
+
+        if (lo == null && hi == null) {
+            found = values.values();
+        } else if (lo == null) {
+            found = values.headMap(hi, true).values();
+        } else if (hi == null) {
+            found = values.tailMap(lo, true).values();
+        } else if (values.comparator().compare(lo, hi) > 0) {
+            return new ArrayList<Record>();
+        } else {
+            found = values.subMap(lo, true, hi, true).values();
+        }
+
+        ArrayList<Record> ret = new ArrayList<Record>();
+        for (LinkedHashSet<Record> matches : found) {
+            ret.addAll(matches);
+        }
+
+        return ret;
+    }
+}
@@ -1,42 +1,505 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+// The tables in the data directory. Each table is loaded the first time it is
+// asked for, or all at once by load(). Safe to use from several threads.
 public class Database {
-    private final HashMap<String, Table> tables;
+    // Records the transactions over several logged tables that committed.
+    private static final File COMMITS = new File("db.commits");
+
+    private final TreeMap<String, Table> tables;
+    // Tables found in the data directory that haven't been loaded yet.
+    private final TreeSet<String> unloaded;
+    // The thread loading each table that is part way through loading.
+    private final HashMap<String, Thread> loading;
+    // The tables each table refers to through ref() types, read from the
+    // table files' headers when first needed.
+    private final HashMap<String, String[]> dependencies;
+    // Counts changes made while snapshots are in use, giving each its time. A
+    // snapshot sees the changes made up to the time it was taken.
+    private long clock;
+    // The times of the snapshots in use, with how many were taken at each.
+    private final TreeMap<Long, Integer> snapshots;
+    // How long in nanoseconds a change waits for others to be logged before
+    // writing them all to disk together.
+    private volatile long commitDelay;
+    // The ids of transactions over several logged tables that have committed,
+    // read from the commits file when first needed, and the last id given.
+    private HashSet<Long> commits;
+    private long lastCommit;
 
     public Database() {
         File dataDir = new File(".");
-        tables = new HashMap<String, Table>();
+        tables = new TreeMap<String, Table>();
+        unloaded = new TreeSet<String>();
+        loading = new HashMap<String, Thread>();
+        dependencies = new HashMap<String, String[]>();
+        snapshots = new TreeMap<Long, Integer>();
 
         for (File tbl : dataDir.listFiles(new TableFilter())) {
             int end = tbl.getName().length() - 4;
             String name = tbl.getName().substring(0, end);
 
-            new Table(this, name);
+            unloaded.add(name);
+        }
+    }
+
+    // Returns the tables the named table refers to, reading them from its
+    // header the first time. Unless the caller holds the lock, the header is
+    // read without it, so other tables can be asked for meanwhile.
+    private String[] dependencies(String name) {
+        synchronized (this) {
+            String[] deps = dependencies.get(name);
+
+            if (deps != null) {
+                return deps;
+            }
+        }
+
+        String[] deps = readDependencies(name);
+
+        synchronized (this) {
+            dependencies.put(name, deps);
+        }
+
+        return deps;
+    }
+
+    // Reads the tables a table file refers to from its header, without
+    // reading the rest of the file. A bad header is left for loading to report.
+    private static String[] readDependencies(String name) {
+        ArrayList<String> ret = new ArrayList<String>();
+        File binFile = new File(name + TableFile.EXTENSION);
+
+        try {
+            String[] types;
+
+            if (new File(name + PagedStore.EXTENSION).exists()) {
+                // Paged tables can't have ref() columns.
+                types = null;
+            } else if (binFile.exists()) {
+                types = new TableFile(binFile).types();
+            } else {
+                TableReader in = new TableReader(new File(name + ".txt"));
+                types = in.next() == null ? null : in.next();
+            }
+
+            if (types != null) {
+                for (String type : types) {
+                    String ref = Type.refName(type);
+
+                    if (ref != null) {
+                        ret.add(ref);
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            // Reported when the table is loaded.
+        } catch (Error e) {
+            // Reported when the table is loaded.
         }
+
+        return ret.toArray(new String[ret.size()]);
+    }
+
+    // Returns true if the named table refers to itself through tables not yet
+    // loaded, so it can never load. Tables that only refer to such a table
+    // aren't part of the cycle, and load or fail by themselves.
+    private synchronized boolean cyclic(String name) {
+        ArrayList<String> todo = new ArrayList<String>(Arrays.asList(dependencies(name)));
+        HashSet<String> seen = new HashSet<String>();
+
+        while (!todo.isEmpty()) {
+            String dep = todo.remove(todo.size() - 1);
+
+            if (dep.equals(name)) {
+                return true;
+            } else if (unloaded.contains(dep) && seen.add(dep)) {
+                todo.addAll(Arrays.asList(dependencies(dep)));
+            }
+        }
+
+        return false;
+    }
+
+    // Returns the tables among the given ones that refer to each of them, and
+    // fills in how many of the given tables each refers to.
+    private HashMap<String, ArrayList<String>> dependents(Collection<String> names,
+                                                          HashMap<String, Integer> waiting) {
+        HashMap<String, ArrayList<String>> ret = new HashMap<String, ArrayList<String>>();
+
+        for (String name : names) {
+            ret.put(name, new ArrayList<String>());
+            waiting.put(name, 0);
+        }
+
+        for (String name : names) {
+            for (String dep : new TreeSet<String>(Arrays.asList(dependencies(name)))) {
+                if (ret.containsKey(dep)) {
+                    ret.get(dep).add(name);
+                    waiting.put(name, waiting.get(name) + 1);
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    // Notes that one of the tables a table waits for is done, and returns true
+    // if it was the last.
+    private static boolean release(HashMap<String, Integer> waiting, String name) {
+        int left = waiting.get(name) - 1;
+        waiting.put(name, left);
+        return left == 0;
     }
 
+    // Returns the named table, loading it first if needed, or null if there is
+    // no such table. Loading a table also loads any tables its types refer to.
     public Table table(String name) {
-        return tables.get(name);
+        synchronized (this) {
+            while (true) {
+                Table t = tables.get(name);
+                if (t != null || !unloaded.contains(name)) {
+                    return t;
+                }
+
+                Thread loader = loading.get(name);
+                if (loader == null) {
+                    break;
+                } else if (loader == Thread.currentThread() || cyclic(name)) {
+                    // The table refers back to itself, so can't be loaded yet.
+                    // Waiting for another thread here could wait forever.
+                    return null;
+                }
+
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new Error("Interrupted while loading table.");
+                }
+            }
+
+            loading.put(name, Thread.currentThread());
+        }
+
+        try {
+            return new Table(this, name);
+        } finally {
+            synchronized (this) {
+                loading.remove(name);
+                notifyAll();
+            }
+        }
+    }
+
+    // Loads every table that hasn't been loaded yet, several at once. Each
+    // table starts loading once the tables it refers to have loaded, and
+    // tables that are ready at the same time start in order of name. If any
+    // table fails to load, the error for the first by name is thrown once
+    // the rest have loaded.
+    public void load() {
+        ArrayList<String> names;
+        synchronized (this) {
+            names = new ArrayList<String>(unloaded);
+        }
+
+        HashMap<String, Integer> waiting = new HashMap<String, Integer>();
+        HashMap<String, ArrayList<String>> dependents = dependents(names, waiting);
+        TreeMap<String, Error> errors = new TreeMap<String, Error>();
+
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), Math.max(names.size(), 1));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ExecutorCompletionService<String> done = new ExecutorCompletionService<String>(pool);
+        int running = 0;
+
+        try {
+            for (String name : names) {
+                if (waiting.get(name) == 0) {
+                    done.submit(new Load(name));
+                    running++;
+                }
+            }
+
+            while (running > 0) {
+                String name;
+
+                try {
+                    name = done.take().get();
+                } catch (ExecutionException ee) {
+                    LoadError error = (LoadError)ee.getCause();
+                    errors.put(error.name, error.error);
+                    running--;
+                    continue;
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new Error("Interrupted while loading tables.");
+                }
+
+                running--;
+
+                TreeSet<String> ready = new TreeSet<String>();
+                for (String dependent : dependents.get(name)) {
+                    if (release(waiting, dependent)) {
+                        ready.add(dependent);
+                    }
+                }
+
+                for (String dependent : ready) {
+                    done.submit(new Load(dependent));
+                    running++;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        // Anything left refers to a table that failed, or to itself. Load them
+        // one at a time, to give the same errors as loading them alone would.
+        for (String name : names) {
+            if (!errors.containsKey(name)) {
+                try {
+                    table(name);
+                } catch (Error e) {
+                    errors.put(name, e);
+                }
+            }
+        }
+
+        if (!errors.isEmpty()) {
+            throw errors.firstEntry().getValue();
+        }
+    }
+
+    private class Load implements Callable<String> {
+        private final String name;
+
+        public Load(String name) {
+            this.name = name;
+        }
+
+        public String call() throws LoadError {
+            try {
+                table(name);
+                return name;
+            } catch (Error e) {
+                throw new LoadError(name, e);
+            }
+        }
     }
 
+    // Carries a table's load error back from the thread that loaded it.
+    private static class LoadError extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final Error error;
+
+        public LoadError(String name, Error error) {
+            super(error);
+            this.name = name;
+            this.error = error;
+        }
+    }
+
+    // Returns every table, loading any that haven't been yet.
     public Table[] tables() {
-        Table[] result = new Table[0];
-        Collection<Table> c = tables.values();
-        return c.toArray(result);
+        load();
+
+        synchronized (this) {
+            Table[] result = new Table[0];
+            Collection<Table> c = tables.values();
+            return c.toArray(result);
+        }
+    }
+
+    // Returns the names of every table, without loading any.
+    public synchronized String[] names() {
+        TreeSet<String> names = new TreeSet<String>(unloaded);
+        names.addAll(tables.keySet());
+        return names.toArray(new String[names.size()]);
     }
 
     // Internal method for use by table constructors
-    void addTable(Table t) {
+    // Loads the tables whose types refer to the named table.
+    void loadReferrers(String name) {
+        ArrayList<String> names;
+
+        synchronized (this) {
+            names = new ArrayList<String>(unloaded);
+        }
+
+        for (String other : names) {
+            if (Arrays.asList(dependencies(other)).contains(name)) {
+                table(other);
+            }
+        }
+    }
+
+    synchronized void addTable(Table t) {
         tables.put(t.name(), t);
+        unloaded.remove(t.name());
+    }
+
+    // Sets how long in microseconds a change waits for others before they are
+    // all written to disk together. Longer delays write more changes at once
+    // when many threads are making them, but each change takes longer. With
+    // no delay, changes made while a write is under way still share the next.
+    public void commitDelay(long micros) {
+        if (micros < 0) {
+            throw new Error("Delay can't be negative.");
+        }
+
+        commitDelay = micros * 1000;
+    }
+
+    long commitDelay() {
+        return commitDelay;
+    }
+
+    // Begins a transaction, which reads the tables as they are now.
+    public Transaction begin() {
+        return new Transaction(this);
+    }
+
+    // Takes a snapshot, returning its time. Changes made after it keep the
+    // values they replace until the snapshot is released.
+    synchronized long snapshot() {
+        Integer count = snapshots.get(clock);
+        snapshots.put(clock, count == null ? 1 : count + 1);
+        return clock;
+    }
+
+    synchronized void release(long time) {
+        int count = snapshots.get(time);
+
+        if (count == 1) {
+            snapshots.remove(time);
+        } else {
+            snapshots.put(time, count - 1);
+        }
+    }
+
+    // Returns true if any snapshot is in use.
+    synchronized boolean snapshots() {
+        return !snapshots.isEmpty();
+    }
+
+    // Returns the time for a change about to be made, or 0 if no snapshot is
+    // in use, so none could need the values it replaces.
+    synchronized long change() {
+        return snapshots.isEmpty() ? 0 : ++clock;
+    }
+
+    // Returns the time for a transaction's changes, which are kept as versions
+    // whether or not another snapshot is in use.
+    synchronized long tick() {
+        return ++clock;
+    }
+
+    // Returns an id for a transaction changing several logged tables, which
+    // differs from those of earlier runs.
+    synchronized long commitId() {
+        readCommits();
+        lastCommit = Math.max(lastCommit + 1, System.currentTimeMillis() * 1000000);
+        return lastCommit;
+    }
+
+    // Records that a transaction over several logged tables has committed,
+    // once each of their logs holds all of its changes. Until then, a crash
+    // leaves it out of every table.
+    synchronized void committed(long id) {
+        readCommits();
+
+        try {
+            FileOutputStream fos = new FileOutputStream(COMMITS, true);
+
+            try {
+                DataOutputStream out = new DataOutputStream(fos);
+                out.writeLong(id);
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+        } catch (IOException ioe) {
+            throw new Error("Failed to record commit.", ioe);
+        }
+
+        commits.add(id);
+    }
+
+    synchronized boolean isCommitted(long id) {
+        readCommits();
+        return commits.contains(id);
+    }
+
+    // Reads the commits file. If no table has a log, the commits recorded
+    // can't be needed, so the file is emptied.
+    private void readCommits() {
+        if (commits != null) {
+            return;
+        }
+
+        commits = new HashSet<Long>();
+        File[] logs = new File(".").listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().endsWith(".log");
+            }
+        });
+
+        if (logs == null || logs.length == 0) {
+            if (COMMITS.exists() && !COMMITS.delete()) {
+                throw new Error("Failed to clear commits.");
+            }
+            return;
+        }
+
+        if (!COMMITS.exists()) {
+            return;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(COMMITS)));
+
+            try {
+                // A torn id at the end is ignored, as it was never committed.
+                for (long n = COMMITS.length() / 8; n > 0; n--) {
+                    long id = in.readLong();
+                    commits.add(id);
+                    lastCommit = Math.max(lastCommit, id);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            throw new Error("Failed to read commits.", ioe);
+        }
     }
 
     private static class TableFilter implements FileFilter {
         public boolean accept(File file) {
             return file.isFile() && file.canRead() && !file.isHidden()
-                && file.getName().endsWith(".txt");
+                && (file.getName().endsWith(".txt") || file.getName().endsWith(TableFile.EXTENSION)
+                    || file.getName().endsWith(PagedStore.EXTENSION));
         }
     }
 
@@ -47,5 +510,70 @@ public class Database {
         if (t == null) {
             throw new Error("People table missing from database.");
         }
+        if (db.table("missing") != null || db.names().length != db.tables().length) {
+            throw new Error("Table names incorrect.");
+        }
+
+        // Tables should load after the tables they refer to, whatever their names.
+        String[][] files = {
+            {"db_test_a", "Key,B\nstring,ref(db_test_b)\na,b\n"},
+            {"db_test_b", "Key,C\nstring,ref(db_test_c)\nb,c\n"},
+            {"db_test_c", "Key\nstring\nc\n"},
+            {"db_test_loop", "Key,Self\nstring,ref(db_test_loop)\n"},
+            {"db_test_x", "Key,Loop\nstring,ref(db_test_loop)\n"}
+        };
+
+        try {
+            for (String[] file : files) {
+                FileOutputStream out = new FileOutputStream(file[0] + ".txt");
+                out.write(file[1].getBytes("UTF-8"));
+                out.close();
+            }
+
+            // Headers are only read when needed, and only the tables in a
+            // cycle are taken to be in one.
+            db = new Database();
+            if (!db.dependencies.isEmpty() || !db.cyclic("db_test_loop") || db.cyclic("db_test_x")
+                    || db.cyclic("db_test_a")) {
+                throw new Error("Cyclic tables found incorrectly.");
+            }
+
+            db = new Database();
+            boolean fail = true;
+
+            try {
+                db.load();
+            } catch (Error e) {
+                fail = !e.getMessage().equals("Type references non-existant table.");
+            }
+
+            if (fail) {
+                throw new Error("Table referring to itself loaded.");
+            }
+            if (db.table("db_test_a").select("a") == null || db.table("db_test_c") == null) {
+                throw new Error("Tables not loaded in order.");
+            }
+
+            // Tables not yet loaded still keep the keys they refer to.
+            db = new Database();
+            fail = true;
+
+            try {
+                db.table("db_test_c").select("c").delete();
+            } catch (Error e) {
+                fail = !e.getMessage().equals("Record is still referenced.");
+            }
+
+            if (fail || db.table("db_test_c").select("c") == null) {
+                throw new Error("Record referred to by an unloaded table deleted.");
+            }
+        } catch (IOException ioe) {
+            throw new Error("Database testing failed.", ioe);
+        } finally {
+            for (String[] file : files) {
+                new File(file[0] + ".txt").delete();
+                new File(file[0] + ".log").delete();
+            }
+        }
     }
 }
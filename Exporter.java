@@ -0,0 +1,235 @@
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+// Writes a table's rows to a stream in one of the formats Importer reads. The
+// rows are read from a snapshot a row at a time and written through a buffer
+// of fixed size, so neither the table nor the output is ever held in memory
+// whole, and changes made meanwhile don't leave a half changed copy. Paged
+// tables keep no old versions for snapshots, so they are read under the
+// table's read lock instead, and changes to them wait for the export.
+public class Exporter {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Writes the table's column names, its types for the native format, and
+    // then its rows. Returns the number of rows written.
+    public static int write(Database db, Table t, OutputStream out, Importer.FORMAT format) {
+        Transaction tx = db.begin();
+        // Tables can't change to or from paged while the snapshot is in use.
+        long stamp = t.format() == Table.FORMAT.PAGED ? t.readLock() : 0;
+
+        try {
+            String[] names = new String[t.columns()];
+            String[] types = new String[t.columns()];
+
+            for (int col = 0; col < names.length; col++) {
+                names[col] = t.name(col);
+                types[col] = t.type(col).toString();
+            }
+
+            Iterator<String[]> rows = stamp != 0 ? t.held() : tx.scan(t);
+            int count = 0;
+
+            if (format == Importer.FORMAT.NATIVE) {
+                FieldCodec codec = new FieldCodec(out);
+                codec.write(names);
+                codec.write(types);
+
+                while (rows.hasNext()) {
+                    codec.write(rows.next());
+                    count++;
+                }
+
+                codec.flush();
+            } else {
+                Writer w = new BufferedWriter(new OutputStreamWriter(out, UTF8), BUFFER_SIZE);
+                write(w, names, format);
+
+                while (rows.hasNext()) {
+                    write(w, rows.next(), format);
+                    count++;
+                }
+
+                w.flush();
+            }
+
+            return count;
+        } catch (IOException ioe) {
+            throw new Error("Unable to write rows.", ioe);
+        } finally {
+            t.unlockRead(stamp);
+            tx.rollback();
+        }
+    }
+
+    private static void write(Writer w, String[] fields, Importer.FORMAT format) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                w.write(format == Importer.FORMAT.CSV ? ',' : '\t');
+            }
+
+            if (format == Importer.FORMAT.CSV) {
+                writeCsv(w, fields[i]);
+            } else {
+                writeTsv(w, fields[i]);
+            }
+        }
+
+        w.write('\n');
+    }
+
+    // Quotes a field only if it needs it.
+    private static void writeCsv(Writer w, String field) throws IOException {
+        boolean quote = false;
+
+        for (int i = 0; i < field.length() && !quote; i++) {
+            char c = field.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+
+        if (!quote) {
+            w.write(field);
+            return;
+        }
+
+        w.write('"');
+
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+
+            if (c == '"') {
+                w.write('"');
+            }
+
+            w.write(c);
+        }
+
+        w.write('"');
+    }
+
+    private static void writeTsv(Writer w, String field) throws IOException {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+
+            if (c == '\t') {
+                w.write("\\t");
+            } else if (c == '\n') {
+                w.write("\\n");
+            } else if (c == '\r') {
+                w.write("\\r");
+            } else if (c == '\\') {
+                w.write("\\\\");
+            } else {
+                w.write(c);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        Database db = new Database();
+        Type[] types = {Type.type(db, "string"), Type.type(db, "integer"), Type.type(db, "string")};
+        Table t = new Table(db, "export_test", new String[] {"Key", "Num", "Note"}, types);
+        String[][] rows = {
+            {"a", "1", "plain"},
+            {"b", "2", "comma, \"quote\""},
+            {"c", "3", "tab\tback\\slash\nlines"},
+            {"d", "4", ""}
+        };
+
+        for (String[] row : rows) {
+            new Record(t, row);
+        }
+
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        write(db, t, csv, Importer.FORMAT.CSV);
+        String expected = "Key,Num,Note\na,1,plain\nb,2,\"comma, \"\"quote\"\"\"\n"
+            + "c,3,\"tab\tback\\slash\nlines\"\nd,4,\n";
+
+        if (!Arrays.equals(csv.toByteArray(), expected.getBytes(UTF8)) || db.snapshots()) {
+            throw new Error("CSV written incorrectly.");
+        }
+
+        // Each format reads back as it was written, into a table of its own.
+        for (Importer.FORMAT format : Importer.FORMAT.values()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            if (write(db, t, out, format) != rows.length) {
+                throw new Error("Rows written miscounted.");
+            }
+
+            Table copy = new Table(db, "export_test_" + format, new String[] {"Key", "Num", "Note"}, types);
+            ArrayList<Table.Reject> rejects = Importer.load(copy, new ByteArrayInputStream(out.toByteArray()), format);
+
+            if (!rejects.isEmpty() || copy.rows() != rows.length) {
+                throw new Error("Exported rows not imported for " + format + ".");
+            }
+
+            for (String[] row : rows) {
+                for (int col = 0; col < row.length; col++) {
+                    if (!row[col].equals(copy.select(row[0]).field(col))) {
+                        throw new Error("Exported rows changed for " + format + ".");
+                    }
+                }
+            }
+        }
+
+        // Paged tables are read under their read lock, so a writer waits for
+        // the export rather than changing the rows part way through it.
+        final Table paged = new Table(db, "export_paged", new String[] {"Key", "Num", "Note"}, types);
+        File pages = new File("export_paged" + PagedStore.EXTENSION);
+
+        try {
+            for (String[] row : rows) {
+                new Record(paged, row);
+            }
+            paged.convert(Table.FORMAT.PAGED);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            write(db, paged, out, Importer.FORMAT.CSV);
+            if (!Arrays.equals(out.toByteArray(), expected.getBytes(UTF8))) {
+                throw new Error("Paged table written incorrectly.");
+            }
+
+            final int added = 500;
+            Thread writer = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < added; i++) {
+                        new Record(paged, new String[] {"w" + i, Integer.toString(i), "added"});
+                    }
+                }
+            });
+            writer.start();
+            out.reset();
+            int count = write(db, paged, out, Importer.FORMAT.CSV);
+            writer.join();
+
+            Table copy = new Table(db, "export_paged_copy", new String[] {"Key", "Num", "Note"}, types);
+            ArrayList<Table.Reject> rejects = Importer.load(copy, new ByteArrayInputStream(out.toByteArray()),
+                                                            Importer.FORMAT.CSV);
+
+            if (!rejects.isEmpty() || copy.rows() != count || count < rows.length || count > rows.length + added
+                    || paged.rows() != rows.length + added) {
+                throw new Error("Paged table written incorrectly while changing.");
+            }
+        } catch (InterruptedException ie) {
+            throw new Error("Interrupted waiting for writer.");
+        } finally {
+            paged.close();
+            pages.delete();
+            PagedStore.indexFile(pages).delete();
+            PageFile.journalFile(pages).delete();
+            new File("export_paged.txt").delete();
+            new File("export_paged.log").delete();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+// Converts fields to and from the escaped UTF-8 form used in table files, using
+// a single reusable byte buffer. When writing, fields are escaped straight into
+// the buffer in one pass, which is written out in large blocks. When reading,
+// the unescaped bytes of a field are gathered in the buffer before being
+// turned into a String.
+public class FieldCodec {
+    public static final byte FIELD_END = ',';
+    public static final byte RECORD_END = '\n';
+    public static final byte ESCAPE = '\\';
+    // Skipped wherever it appears, for files written with Windows line endings.
+    public static final byte SKIPPED = '\r';
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final OutputStream out;
+    private byte[] buf;
+    private int len;
+
+    // Creates a codec for reading fields.
+    public FieldCodec() {
+        this(null);
+    }
+
+    // Creates a codec for writing fields to the given stream.
+    public FieldCodec(OutputStream out) {
+        this.out = out;
+        buf = new byte[out == null ? 256 : BUFFER_SIZE];
+        len = 0;
+    }
+
+    // Returns true if the given byte may follow an escape character.
+    public static boolean escapable(byte c) {
+        return c == FIELD_END || c == ESCAPE || c == RECORD_END;
+    }
+
+    // Adds a byte of the field being read.
+    public void append(byte c) {
+        if (len == buf.length) {
+            buf = Arrays.copyOf(buf, len * 2);
+        }
+
+        buf[len++] = c;
+    }
+
+    // Returns the field that has been read, and starts a new one.
+    public String take() {
+        String s = new String(buf, 0, len, UTF8);
+        len = 0;
+        return s;
+    }
+
+    // Discards the field being read.
+    public void clear() {
+        len = 0;
+    }
+
+    // Writes a field followed by a field or record delimiter.
+    public void write(String field, boolean last) throws IOException {
+        int n = field.length();
+
+        // Each char needs at most 3 bytes: an escaped ASCII char needs 2, a
+        // char outside ASCII needs 2 or 3, and a surrogate pair needs 4.
+        reserve(n * 3 + 1);
+
+        byte[] b = buf;
+        int pos = len;
+
+        for (int i = 0; i < n; i++) {
+            char c = field.charAt(i);
+
+            if (c < 0x80) {
+                if (c == FIELD_END || c == ESCAPE || c == RECORD_END) {
+                    b[pos++] = ESCAPE;
+                }
+                b[pos++] = (byte)c;
+            } else if (c < 0x800) {
+                b[pos++] = (byte)(0xc0 | (c >> 6));
+                b[pos++] = (byte)(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                       && Character.isLowSurrogate(field.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, field.charAt(++i));
+                b[pos++] = (byte)(0xf0 | (cp >> 18));
+                b[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+                b[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                b[pos++] = (byte)(0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates can't be encoded, as with String.getBytes.
+                b[pos++] = '?';
+            } else {
+                b[pos++] = (byte)(0xe0 | (c >> 12));
+                b[pos++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                b[pos++] = (byte)(0x80 | (c & 0x3f));
+            }
+        }
+
+        b[pos++] = last ? RECORD_END : FIELD_END;
+        len = pos;
+    }
+
+    // Writes a whole record.
+    public void write(String[] fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            write(fields[i], i == fields.length - 1);
+        }
+    }
+
+    // Makes room for the given number of bytes, writing out the buffer if needed.
+    private void reserve(int needed) throws IOException {
+        if (buf.length - len < needed) {
+            flush();
+
+            if (buf.length < needed) {
+                buf = new byte[needed];
+            }
+        }
+    }
+
+    // Writes out anything in the buffer.
+    public void flush() throws IOException {
+        if (len > 0) {
+            out.write(buf, 0, len);
+            len = 0;
+        }
+    }
+
+    public static void main(String[] args) {
+        String[] values = {
+            "plain",
+            "",
+            "a,b\\c\nd",
+            "\u00e9\u20ac\ud83d\ude00"
+        };
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            FieldCodec out = new FieldCodec(bytes);
+            out.write(values);
+            out.flush();
+
+            String expected = "plain,,a\\,b\\\\c\\\nd,\u00e9\u20ac\ud83d\ude00\n";
+            if (!Arrays.equals(bytes.toByteArray(), expected.getBytes(UTF8))) {
+                throw new Error("Fields escaped incorrectly.");
+            }
+
+            FieldCodec in = new FieldCodec();
+            for (byte c : values[3].getBytes(UTF8)) {
+                in.append(c);
+            }
+            if (!values[3].equals(in.take()) || !"".equals(in.take())) {
+                throw new Error("Field read incorrectly.");
+            }
+        } catch (IOException ioe) {
+            throw new Error("Codec testing failed.", ioe);
+        }
+    }
+}
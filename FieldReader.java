@@ -0,0 +1,131 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Reads records in the same format as TableReader from a stream, such as a
+// pipe, that can't be memory mapped. Bytes are read in large blocks and the
+// fields gathered with a FieldCodec, so a record is never held as a line first.
+public class FieldReader {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final InputStream in;
+    private final byte[] buf;
+    private int pos;
+    private int len;
+
+    // Reused between fields and records to avoid allocating per field.
+    private final ArrayList<String> fields;
+    private final FieldCodec codec;
+
+    public FieldReader(InputStream in) {
+        this.in = in;
+        buf = new byte[BUFFER_SIZE];
+        pos = 0;
+        len = 0;
+        fields = new ArrayList<String>();
+        codec = new FieldCodec();
+    }
+
+    // Returns the next byte, or -1 at the end of the stream.
+    private int read() {
+        if (pos == len) {
+            try {
+                len = in.read(buf);
+            } catch (IOException ioe) {
+                throw new Error("Unable to read records.", ioe);
+            }
+
+            pos = 0;
+
+            if (len <= 0) {
+                len = 0;
+                return -1;
+            }
+        }
+
+        return buf[pos++];
+    }
+
+    // Reads the next record as an array of Strings. A last record without a
+    // newline is still returned. Returns null if there are no more records.
+    public String[] next() {
+        boolean isEscaped = false;
+        boolean any = false;
+
+        fields.clear();
+
+        while (true) {
+            int r = read();
+
+            if (r == -1) {
+                break;
+            }
+
+            byte c = (byte)r;
+            any = true;
+
+            if (c == FieldCodec.SKIPPED) {
+                continue;
+            }
+
+            if (isEscaped) {
+                if (FieldCodec.escapable(c)) {
+                    codec.append(c);
+                } else {
+                    throw new Error("Invalid escape sequence.");
+                }
+
+                isEscaped = false;
+            } else if (c == FieldCodec.ESCAPE) {
+                isEscaped = true;
+            } else if (c == FieldCodec.FIELD_END) {
+                fields.add(codec.take());
+            } else if (c == FieldCodec.RECORD_END) {
+                fields.add(codec.take());
+                return fields.toArray(new String[fields.size()]);
+            } else {
+                codec.append(c);
+            }
+        }
+
+        if (isEscaped) {
+            codec.clear();
+            throw new Error("Records end with an escape character.");
+        }
+
+        if (!any) {
+            return null;
+        }
+
+        // A stream that stops without a newline still ends its last record.
+        fields.add(codec.take());
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    public static void main(String[] args) {
+        Charset utf8 = Charset.forName("UTF-8");
+        String text = "a,b\\,c\r\n\n\u00e9,\\\\,\\\nx";
+        FieldReader r = new FieldReader(new ByteArrayInputStream(text.getBytes(utf8)));
+
+        if (!Arrays.equals(r.next(), new String[] {"a", "b,c"})
+                || !Arrays.equals(r.next(), new String[] {""})
+                || !Arrays.equals(r.next(), new String[] {"\u00e9", "\\", "\nx"})
+                || r.next() != null) {
+            throw new Error("Records read incorrectly.");
+        }
+
+        boolean fail = false;
+        try {
+            new FieldReader(new ByteArrayInputStream("a\\b\n".getBytes(utf8))).next();
+        } catch (Error e) {
+            fail = true;
+        }
+
+        if (!fail) {
+            throw new Error("Invalid escape accepted.");
+        }
+    }
+}
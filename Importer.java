@@ -0,0 +1,331 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Reads rows from a stream a row at a time, so files of any size can be added
+// to a table with Table.insertAll(). Each format starts with a row of column
+// names:
+//
+//     NATIVE - the table file format, so the names are followed by a row of
+//              types, which is skipped. A table's own file can be imported.
+//     CSV    - comma separated values. A field may be quoted with '"', in
+//              which case it may hold ',', '"' doubled, and line breaks.
+//     TSV    - tab separated values. A '\' followed by 't', 'n', 'r' or '\'
+//              stands for a tab, newline, carriage return or '\'. Any other
+//              '\' is kept as it is.
+public class Importer implements Iterator<String[]> {
+    public enum FORMAT { NATIVE, CSV, TSV }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FORMAT format;
+    private final FieldReader fields;
+    private final Reader reader;
+    private final char[] buf;
+    private int pos;
+    private int len;
+
+    private String[] names;
+    private String[] next;
+
+    public Importer(InputStream in, FORMAT format) {
+        this.format = format;
+
+        if (format == FORMAT.NATIVE) {
+            fields = new FieldReader(in);
+            reader = null;
+            buf = null;
+        } else {
+            fields = null;
+            reader = new InputStreamReader(in, UTF8);
+            buf = new char[BUFFER_SIZE];
+        }
+    }
+
+    // Returns the format with the given name, or that files with the given
+    // name's extension are in. Table files end in .txt.
+    public static FORMAT format(String name) {
+        String lower = name.toLowerCase();
+
+        if (lower.equals("csv") || lower.endsWith(".csv")) {
+            return FORMAT.CSV;
+        } else if (lower.equals("tsv") || lower.endsWith(".tsv")) {
+            return FORMAT.TSV;
+        } else if (lower.equals("native") || lower.endsWith(".txt")) {
+            return FORMAT.NATIVE;
+        }
+
+        throw new Error("No such format: " + name);
+    }
+
+    // Returns the column names the rows start with.
+    public String[] names() {
+        if (names == null) {
+            names = read();
+
+            if (names == null) {
+                throw new Error("No column names.");
+            } else if (format == FORMAT.NATIVE && read() == null) {
+                throw new Error("No column types.");
+            }
+        }
+
+        return names;
+    }
+
+    public boolean hasNext() {
+        if (next == null) {
+            names();
+            next = read();
+        }
+
+        return next != null;
+    }
+
+    public String[] next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        String[] ret = next;
+        next = null;
+        return ret;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    // Returns the rows with their fields in the order of the table's columns,
+    // matching the column names by name. Columns without a name are left
+    // blank, and every name must belong to a column. A row with more fields
+    // than there are names is given the extra fields after the table's
+    // columns, so insertAll() rejects it rather than the fields being lost.
+    public Iterator<String[]> columns(Table t) {
+        String[] names = names();
+        final int[] from = new int[t.columns()];
+        Arrays.fill(from, -1);
+
+        for (int i = 0; i < names.length; i++) {
+            int col = t.column(names[i]);
+
+            if (col == -1) {
+                throw new Error("No such column: " + names[i]);
+            } else if (from[col] != -1) {
+                throw new Error("Column given twice: " + names[i]);
+            }
+
+            from[col] = i;
+        }
+
+        if (from[0] == -1) {
+            throw new Error("No key column: " + t.name(0));
+        }
+
+        return new Iterator<String[]>() {
+            public boolean hasNext() {
+                return Importer.this.hasNext();
+            }
+
+            public String[] next() {
+                String[] fields = Importer.this.next();
+                String[] row = new String[from.length + Math.max(fields.length - names.length, 0)];
+
+                for (int col = 0; col < from.length; col++) {
+                    row[col] = from[col] == -1 ? "" : from[col] < fields.length ? fields[from[col]] : null;
+                }
+
+                for (int i = names.length; i < fields.length; i++) {
+                    row[from.length + i - names.length] = fields[i];
+                }
+
+                return row;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Reads the whole stream into the table, and returns the rows rejected.
+    public static ArrayList<Table.Reject> load(Table t, InputStream in, FORMAT format) {
+        return t.insertAll(new Importer(in, format).columns(t));
+    }
+
+    // Returns the next char, or -1 at the end of the stream.
+    private int read(boolean skip) {
+        if (pos == len) {
+            try {
+                len = reader.read(buf);
+            } catch (IOException ioe) {
+                throw new Error("Unable to read rows.", ioe);
+            }
+
+            pos = 0;
+
+            if (len <= 0) {
+                len = 0;
+                return -1;
+            }
+        }
+
+        return skip ? buf[pos++] : buf[pos];
+    }
+
+    // Reads the next record, or returns null at the end of the stream. A last
+    // record without a line break is still returned.
+    private String[] read() {
+        if (format == FORMAT.NATIVE) {
+            return fields.next();
+        } else if (read(false) == -1) {
+            return null;
+        }
+
+        ArrayList<String> row = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        char sep = format == FORMAT.CSV ? ',' : '\t';
+        boolean quoted = false;
+        boolean start = true;
+
+        while (true) {
+            int c = read(true);
+
+            if (c == -1) {
+                if (quoted) {
+                    throw new Error("Quoted field not ended.");
+                }
+
+                break;
+            } else if (quoted) {
+                if (c != '"') {
+                    field.append((char)c);
+                } else if (read(false) == '"') {
+                    // A doubled quote stands for one.
+                    field.append((char)read(true));
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"' && start && format == FORMAT.CSV) {
+                quoted = true;
+                start = false;
+            } else if (c == '\\' && format == FORMAT.TSV) {
+                int e = read(false);
+
+                if (e == 't' || e == 'n' || e == 'r' || e == '\\') {
+                    read(true);
+                    field.append(e == 't' ? '\t' : e == 'n' ? '\n' : e == 'r' ? '\r' : '\\');
+                } else {
+                    field.append('\\');
+                }
+            } else if (c == sep) {
+                row.add(field.toString());
+                field.setLength(0);
+                start = true;
+            } else if (c == '\n') {
+                break;
+            } else if (c == '\r' && read(false) == '\n') {
+                // Skipped, for files written with Windows line endings.
+                continue;
+            } else {
+                field.append((char)c);
+                start = false;
+            }
+        }
+
+        row.add(field.toString());
+        return row.toArray(new String[row.size()]);
+    }
+
+    private static Importer importer(String text, FORMAT format) {
+        return new Importer(new ByteArrayInputStream(text.getBytes(UTF8)), format);
+    }
+
+    public static void main(String[] args) {
+        Importer csv = importer("Key,Note\r\na,\"x, \"\"y\"\"\r\nz\"\nb,\n\"\",c \"d\"", FORMAT.CSV);
+        if (!Arrays.equals(csv.names(), new String[] {"Key", "Note"})
+                || !Arrays.equals(csv.next(), new String[] {"a", "x, \"y\"\r\nz"})
+                || !Arrays.equals(csv.next(), new String[] {"b", ""})
+                || !Arrays.equals(csv.next(), new String[] {"", "c \"d\""})
+                || csv.hasNext()) {
+            throw new Error("CSV read incorrectly.");
+        }
+
+        Importer tsv = importer("Key\tNote\na\\tb\tc\\\\d\\n\\x\n", FORMAT.TSV);
+        if (!Arrays.equals(tsv.next(), new String[] {"a\tb", "c\\d\n\\x"}) || tsv.hasNext()) {
+            throw new Error("TSV read incorrectly.");
+        }
+
+        Importer nat = importer("Key,Note\nstring,string\na,b\\,c\n", FORMAT.NATIVE);
+        if (!Arrays.equals(nat.next(), new String[] {"a", "b,c"}) || nat.hasNext()) {
+            throw new Error("Native rows read incorrectly.");
+        }
+
+        if (format("people.txt") != FORMAT.NATIVE || format("CSV") != FORMAT.CSV || format("out.tsv") != FORMAT.TSV) {
+            throw new Error("Format chosen incorrectly.");
+        }
+
+        boolean unknown = false;
+        try {
+            format("rows.json");
+        } catch (Error e) {
+            unknown = true;
+        }
+
+        if (!unknown) {
+            throw new Error("Unknown file format taken as native.");
+        }
+
+        // Rows go into the table's columns by name, and bad rows are reported.
+        Database db = new Database();
+        Type[] types = {Type.type(db, "string"), Type.type(db, "integer"), Type.type(db, "string")};
+        Table t = new Table(db, "import_test", new String[] {"Key", "Num", "Note"}, types);
+        new Record(t, new String[] {"a", "1", "first"});
+
+        String text = "note,key,num\nsecond,b,2\ntaken,a,3\nthird,c,three\nfourth,d\nfifth,e,5\nagain,e,6\n"
+            + "extra,f,7,lost\n";
+        ArrayList<Table.Reject> rejects = load(t, new ByteArrayInputStream(text.getBytes(UTF8)), FORMAT.CSV);
+
+        if (rejects.size() != 5 || rejects.get(0).row != 1 || !rejects.get(0).reason.equals("Key already in use.")
+                || rejects.get(1).row != 2 || rejects.get(2).row != 3 || rejects.get(3).row != 5
+                || rejects.get(4).row != 6 || !"lost".equals(rejects.get(4).values[3])) {
+            throw new Error("Rejected rows reported incorrectly.");
+        }
+
+        if (t.rows() != 3 || !"second".equals(t.select("b").field(2)) || !"5".equals(t.select("e").field(1))) {
+            throw new Error("Rows imported incorrectly.");
+        }
+
+        // Rows referred to must exist when the row is added.
+        Table par = new Table(db, "import_par", new String[] {"Key"});
+        new Record(par, new String[] {"p1"});
+        Table ch = new Table(db, "import_ch", new String[] {"Key", "Par"},
+                             new Type[] {Type.type(db, "string"), Type.type(db, "ref(import_par)")});
+        text = "key,par\nc1,p1\nc2,p2\nc3,\n";
+        rejects = load(ch, new ByteArrayInputStream(text.getBytes(UTF8)), FORMAT.CSV);
+
+        if (rejects.size() != 1 || rejects.get(0).row != 1
+                || !rejects.get(0).reason.equals("Value not of type ref(import_par)") || ch.rows() != 2) {
+            throw new Error("Rows referring to missing rows imported.");
+        }
+
+        boolean fail = false;
+        try {
+            load(t, new ByteArrayInputStream("Key,Other\n".getBytes(UTF8)), FORMAT.CSV);
+        } catch (Error e) {
+            fail = true;
+        }
+
+        if (!fail) {
+            throw new Error("Unknown column accepted.");
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.util.Arrays;
+
+// Holds the values of an integer column as primitive longs, indexed by record
+// slot, with a bitmap marking the slots holding a blank value. Only values that
+// turn back into the same String can be held, so values such as "007" or ones
+// too large for a long are left in the record as Strings.
+public class IntColumn extends Column {
+    private long[] values;
+    private long[] blanks;
+
+    public IntColumn() {
+        values = new long[16];
+        blanks = new long[1];
+    }
+
+    public void ensure(int slots) {
+        if (slots > values.length) {
+            int size = Math.max(slots, values.length * 2);
+            values = Arrays.copyOf(values, size);
+            blanks = Arrays.copyOf(blanks, (size + 63) >>> 6);
+        }
+    }
+
+    public boolean blank(int slot) {
+        return (blanks[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    public long get(int slot) {
+        return values[slot];
+    }
+
+    public String string(int slot) {
+        if (blank(slot)) {
+            return "";
+        } else {
+            return Long.toString(values[slot]);
+        }
+    }
+
+    public boolean set(int slot, String value) {
+        int len = value.length();
+
+        if (len == 0) {
+            ensure(slot + 1);
+            blanks[slot >>> 6] |= 1L << slot;
+            return true;
+        }
+
+        boolean negative = value.charAt(0) == '-';
+        int start = negative ? 1 : 0;
+
+        // Reject leading zeros, "-0", and anything that could overflow.
+        if (len == start || len - start > 18
+            || (value.charAt(start) == '0' && (len - start > 1 || negative))) {
+            return false;
+        }
+
+        long v = 0;
+        for (int i = start; i < len; i++) {
+            char c = value.charAt(i);
+
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            v = v * 10 + (c - '0');
+        }
+
+        ensure(slot + 1);
+        values[slot] = negative ? -v : v;
+        blanks[slot >>> 6] &= ~(1L << slot);
+        return true;
+    }
+
+    // Takes the values and blank bitmap of slots 0 onwards in bulk, as read
+    // from a table file.
+    public void load(long[] values, long[] blanks) {
+        ensure(values.length);
+        System.arraycopy(values, 0, this.values, 0, values.length);
+        System.arraycopy(blanks, 0, this.blanks, 0, blanks.length);
+    }
+
+    public void move(int from, int to) {
+        values[to] = values[from];
+
+        if (blank(from)) {
+            blanks[to >>> 6] |= 1L << to;
+        } else {
+            blanks[to >>> 6] &= ~(1L << to);
+        }
+    }
+
+    public static void main(String[] args) {
+        IntColumn c = new IntColumn();
+
+        if (!c.set(100, "-42") || !c.set(3, "") || !c.set(4, "0")) {
+            throw new Error("Valid value rejected.");
+        }
+        if (c.set(5, "007") || c.set(5, "-0") || c.set(5, "9999999999999999999")) {
+            throw new Error("Non-canonical value accepted.");
+        }
+        if (!"-42".equals(c.string(100)) || !"".equals(c.string(3))
+            || !"0".equals(c.string(4)) || c.get(100) != -42) {
+            throw new Error("Value read incorrectly.");
+        }
+
+        c.move(3, 100);
+        c.move(4, 3);
+        if (!"".equals(c.string(100)) || !"0".equals(c.string(3))) {
+            throw new Error("Value moved incorrectly.");
+        }
+    }
+}
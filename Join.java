@@ -0,0 +1,113 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Joins each row of a table to the row it refers to in another table, through
+// one of its ref() columns. The referenced table's key index serves as the
+// hash table, so the join reads each table once rather than searching the
+// referenced table for every row. Pairs of records are produced lazily, with
+// the referring record first.
+public class Join implements Iterable<Record[]> {
+    private final Table table;
+    private final int col;
+    private final Table ref;
+    private boolean outer;
+
+    public Join(Table table, int col) {
+        this.table = table;
+        this.col = col;
+        ref = table.type(col).ref();
+
+        if (ref == null) {
+            throw new Error("Column is not a reference.");
+        }
+
+        outer = false;
+    }
+
+    // Sets whether rows with a blank reference are included, paired with null.
+    public Join outer(boolean outer) {
+        this.outer = outer;
+        return this;
+    }
+
+    public Table referenced() {
+        return ref;
+    }
+
+    public Iterator<Record[]> iterator() {
+        final Iterator<Record> rows = table.scan();
+
+        return new Iterator<Record[]>() {
+            private Record[] next;
+
+            public boolean hasNext() {
+                while (next == null && rows.hasNext()) {
+                    Record r = rows.next();
+                    Record match = ref.select(r.field(col));
+
+                    if (match != null || outer) {
+                        next = new Record[] {r, match};
+                    }
+                }
+
+                return next != null;
+            }
+
+            public Record[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                Record[] ret = next;
+                next = null;
+                return ret;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public static void main(String[] args) {
+        Database db = new Database();
+        Table people = new Table(db, "join_people", new String[] {"Key", "Name"});
+        new Record(people, new String[] {"p1", "Ann"});
+        new Record(people, new String[] {"p2", "Bob"});
+
+        Type[] types = {Type.type(db, "string"), Type.type(db, "ref(join_people)")};
+        Table pets = new Table(db, "join_pets", new String[] {"Key", "Owner"}, types);
+        new Record(pets, new String[] {"cat", "p2"});
+        new Record(pets, new String[] {"dog", "p1"});
+        new Record(pets, new String[] {"fish", ""});
+
+        int count = 0;
+        for (Record[] pair : new Join(pets, 1)) {
+            if (!pair[0].field(1).equals(pair[1].key())) {
+                throw new Error("Joined wrong rows.");
+            }
+            count++;
+        }
+        if (count != 2) {
+            throw new Error("Join returned wrong number of rows.");
+        }
+
+        count = 0;
+        for (Record[] pair : new Join(pets, 1).outer(true)) {
+            count++;
+        }
+        if (count != 3) {
+            throw new Error("Outer join returned wrong number of rows.");
+        }
+
+        boolean fail = true;
+        try {
+            new Join(pets, 0);
+        } catch (Error e) {
+            fail = false;
+        }
+        if (fail) {
+            throw new Error("Joined on a column that isn't a reference.");
+        }
+    }
+}
@@ -0,0 +1,298 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+// A file divided into fixed size pages, numbered from 0, which are read and
+// written whole. Pages past the end of the file read as zeros.
+//
+// A journaled file leaves the file itself alone until sync(). Pages written
+// before then go to a journal beside it, each as its number (8 bytes) then its
+// contents, and are read back from there. sync() marks the journal complete
+// with a trailer, the number of pages in it negated (8 bytes), then copies
+// the pages into the file and removes the journal. A complete journal found
+// when the file is opened is copied again, and an incomplete one dropped, so
+// after a crash the file holds the pages of one sync() or the next, never a
+// mixture of the two.
+public class PageFile {
+    public static final int PAGE_SIZE = 8192;
+    public static final String JOURNAL = ".jnl";
+
+    private static final int ENTRY = 8 + PAGE_SIZE;
+
+    private final RandomAccessFile raf;
+    private final FileChannel ch;
+    private long pages;
+
+    // Null unless journaled.
+    private final File journalFile;
+    private RandomAccessFile journal;
+    private FileChannel jch;
+    // Where each page written since the last sync is in the journal.
+    private final HashMap<Long, Long> journaled;
+
+    public PageFile(File file) throws IOException {
+        this(file, false);
+    }
+
+    public PageFile(File file, boolean journaled) throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        ch = raf.getChannel();
+        journalFile = journaled ? journalFile(file) : null;
+        this.journaled = new HashMap<Long, Long>();
+
+        try {
+            if (journaled) {
+                recover();
+            }
+        } catch (IOException ioe) {
+            raf.close();
+            throw ioe;
+        }
+
+        pages = (ch.size() + PAGE_SIZE - 1) / PAGE_SIZE;
+    }
+
+    // Returns the journal kept for the given file.
+    public static File journalFile(File file) {
+        return new File(file.getPath() + JOURNAL);
+    }
+
+    // Copies the pages of a complete journal into the file, and removes it.
+    private void recover() throws IOException {
+        if (!journalFile.exists()) {
+            return;
+        }
+
+        RandomAccessFile in = new RandomAccessFile(journalFile, "r");
+
+        try {
+            FileChannel jin = in.getChannel();
+            long size = jin.size();
+            ByteBuffer trailer = ByteBuffer.allocate(8);
+
+            if (size >= 8 && (size - 8) % ENTRY == 0) {
+                read(jin, trailer, size - 8);
+
+                if (trailer.getLong(0) == -((size - 8) / ENTRY)) {
+                    ByteBuffer entry = ByteBuffer.allocate(ENTRY);
+
+                    for (long pos = 0; pos < size - 8; pos += ENTRY) {
+                        entry.clear();
+                        read(jin, entry, pos);
+                        long page = entry.getLong(0);
+                        entry.position(8);
+                        write(ch, entry, page * PAGE_SIZE);
+                    }
+
+                    ch.force(false);
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        if (!journalFile.delete()) {
+            throw new IOException("Failed to remove page journal.");
+        }
+    }
+
+    // Returns the number of pages, including any allocated but not yet written.
+    public long pages() {
+        return pages;
+    }
+
+    // Returns the number of a new page at the end of the file.
+    public long allocate() {
+        return pages++;
+    }
+
+    // Reads a page into the buffer, which must hold a page.
+    public void read(long page, ByteBuffer buf) throws IOException {
+        Long at = journaled.get(page);
+        buf.clear();
+
+        if (at != null) {
+            read(jch, buf, at + 8);
+        } else {
+            read(ch, buf, page * PAGE_SIZE);
+        }
+
+        buf.clear();
+    }
+
+    public void write(long page, ByteBuffer buf) throws IOException {
+        buf.clear();
+
+        if (journalFile == null) {
+            write(ch, buf, page * PAGE_SIZE);
+            buf.clear();
+            return;
+        }
+
+        if (journal == null) {
+            journal = new RandomAccessFile(journalFile, "rw");
+            jch = journal.getChannel();
+            jch.truncate(0);
+        }
+
+        // A page written again since the last sync replaces its copy.
+        Long at = journaled.get(page);
+        if (at == null) {
+            at = jch.size();
+            ByteBuffer number = ByteBuffer.allocate(8);
+            number.putLong(0, page);
+            write(jch, number, at);
+            journaled.put(page, at);
+        }
+
+        write(jch, buf, at + 8);
+        buf.clear();
+    }
+
+    // Fills the rest of the buffer from the given position, with zeros past
+    // the end of the channel.
+    private static void read(FileChannel from, ByteBuffer buf, long pos) throws IOException {
+        int start = buf.position();
+
+        while (buf.hasRemaining()) {
+            if (from.read(buf, pos + buf.position() - start) < 0) {
+                break;
+            }
+        }
+
+        while (buf.hasRemaining()) {
+            buf.put((byte)0);
+        }
+    }
+
+    private static void write(FileChannel to, ByteBuffer buf, long pos) throws IOException {
+        int start = buf.position();
+
+        while (buf.hasRemaining()) {
+            to.write(buf, pos + buf.position() - start);
+        }
+    }
+
+    // Forces written pages to disk. A journaled file is only changed here,
+    // once the journal holding the changes is on disk and marked complete.
+    public void sync() throws IOException {
+        if (journal == null) {
+            ch.force(false);
+            return;
+        }
+
+        // The pages must be on disk before the trailer saying they are.
+        jch.force(false);
+        ByteBuffer trailer = ByteBuffer.allocate(8);
+        trailer.putLong(0, -(long)journaled.size());
+        write(jch, trailer, jch.size());
+        jch.force(false);
+
+        ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+        for (Map.Entry<Long, Long> e : journaled.entrySet()) {
+            page.clear();
+            read(jch, page, e.getValue() + 8);
+            page.clear();
+            write(ch, page, e.getKey() * PAGE_SIZE);
+        }
+
+        ch.force(false);
+        dropJournal();
+    }
+
+    // Closes the journal and removes it, with any pages not yet synced.
+    private void dropJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+            jch = null;
+        }
+
+        journaled.clear();
+
+        if (journalFile != null && journalFile.exists() && !journalFile.delete()) {
+            throw new IOException("Failed to remove page journal.");
+        }
+    }
+
+    // Closes the file. Pages written since the last sync are lost.
+    public void close() throws IOException {
+        try {
+            dropJournal();
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static void main(String[] args) {
+        File f = new File("page_test.pag");
+        File j = journalFile(f);
+        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
+
+        try {
+            PageFile pf = new PageFile(f, true);
+            buf.putInt(0, 1);
+            pf.write(pf.allocate(), buf);
+            pf.sync();
+
+            // Pages written since the last sync are read back from the journal.
+            buf.putInt(0, 2);
+            pf.write(0, buf);
+            buf.putInt(0, 3);
+            pf.write(pf.allocate(), buf);
+            pf.read(0, buf);
+
+            if (buf.getInt(0) != 2 || f.length() != PAGE_SIZE || !j.exists()) {
+                throw new Error("Journaled pages written incorrectly.");
+            }
+
+            // A crash before sync leaves the file as last synced.
+            PageFile after = new PageFile(f, true);
+            after.read(0, buf);
+
+            if (after.pages() != 1 || buf.getInt(0) != 1 || j.exists()) {
+                throw new Error("Incomplete journal applied.");
+            }
+
+            after.close();
+            pf.close();
+
+            // A crash part way through copying a complete journal into the
+            // file is finished when it is next opened.
+            pf = new PageFile(f, true);
+            buf.putInt(0, 4);
+            pf.write(0, buf);
+            buf.putInt(0, 5);
+            pf.write(pf.allocate(), buf);
+            byte[] journal = Files.readAllBytes(j.toPath());
+            pf.close();
+
+            FileOutputStream out = new FileOutputStream(j);
+            out.write(journal);
+            out.write(ByteBuffer.allocate(8).putLong(0, -2).array());
+            out.close();
+
+            pf = new PageFile(f, true);
+            pf.read(0, buf);
+            int first = buf.getInt(0);
+            pf.read(1, buf);
+
+            if (pf.pages() != 2 || first != 4 || buf.getInt(0) != 5 || j.exists()) {
+                throw new Error("Complete journal not applied.");
+            }
+
+            pf.close();
+        } catch (IOException ioe) {
+            throw new Error("Page file testing failed.", ioe);
+        } finally {
+            f.delete();
+            j.delete();
+        }
+    }
+}
@@ -0,0 +1,938 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+// Stores the rows of a table in the pages of a page file, read through a buffer
+// pool, so a table can be far larger than the memory available. Page 0 holds
+// the column names and types. Every other page is a slotted page:
+//
+//     slot count (2 bytes), start of row data (2 bytes),
+//     a slot per row: its offset (2 bytes, 0 if empty) and length (2 bytes),
+//     free space,
+//     row data, filled from the end of the page backwards.
+//
+// A row is each of its values as a byte count (2 bytes) then UTF-8, and must
+// fit in a page. Rows are found by page and slot number, which a B+tree in a
+// file of its own, cached in the same pool as the pages, gives for each key,
+// in order of the key column's type. The tree and the pages are stamped with
+// the same random number when created, and if the tree doesn't match, or
+// wasn't completely written, it is rebuilt.
+//
+// The page file is journaled, so it only changes when flushed, and then
+// completely or not at all. Changes since are kept in the table's log, and
+// replayed over the pages as last flushed.
+//
+// Rows are added to the last page, or if it is full to the first page with
+// room for them, so space left by deletes is used again.
+public class PagedStore {
+    public static final String EXTENSION = ".pag";
+    // The number of pages cached for each table, shared by its pages and its
+    // key index.
+    public static final int POOL_PAGES = 4096;
+
+    private static final int MAGIC = 0x44425047;
+    private static final int VERSION = 1;
+    private static final int HEADER = 4;
+    private static final int SLOT = 4;
+
+    private final BufferPool pool;
+    private final String[] names;
+    private final String[] types;
+    // The page and slot of each key's row, as page * 65536 + slot.
+    private BTree index;
+    // The number of rows in each page, and the same counts as a Fenwick tree,
+    // so the page holding a row is found in a few steps. Counted when first
+    // needed, along with the room in each page for another row.
+    private volatile int[] live;
+    private int[] tree;
+    private int[] free;
+    // The pages with room, by the power of two their room is at least, so a
+    // page with room for a row is found without looking at each.
+    private BitSet[] roomy;
+
+    // Opens the store in an existing file. Database is needed to order the keys
+    // by their column's type.
+    public PagedStore(File file, int poolPages, Database db) throws IOException {
+        pool = new BufferPool(new PageFile(file, true), poolPages);
+
+        try {
+            if (pool.pages() == 0) {
+                throw new Error("Table file empty.");
+            }
+
+            BufferPool.Page meta = pool.get(0);
+            long stamp;
+
+            try {
+                ByteBuffer buf = meta.data();
+                buf.clear();
+
+                if (buf.getInt() != MAGIC) {
+                    throw new Error("Table file corrupt.");
+                } else if (buf.getInt() != VERSION) {
+                    throw new Error("Table file version not supported.");
+                }
+
+                stamp = buf.getLong();
+                names = new String[buf.getInt()];
+                types = new String[names.length];
+                for (int col = 0; col < names.length; col++) {
+                    names[col] = readString(buf);
+                    types[col] = readString(buf);
+                }
+            } catch (RuntimeException re) {
+                throw new Error("Table file corrupt.", re);
+            } finally {
+                pool.release(meta);
+            }
+
+            Type order = Type.type(db, types[0]);
+            index = BTree.open(indexFile(file), order, pool);
+
+            if (!index.clean() || index.stamp() != stamp) {
+                index.close();
+                index = BTree.create(indexFile(file), order, stamp, pool);
+                rebuild();
+            }
+        } catch (Error e) {
+            pool.close();
+            throw e;
+        }
+    }
+
+    private PagedStore(BufferPool pool, String[] names, String[] types, BTree index) {
+        this.pool = pool;
+        this.names = names;
+        this.types = types;
+        this.index = index;
+        tree = new int[1];
+        free = new int[1];
+        roomy = buckets();
+        live = new int[1];
+    }
+
+    // Creates a new, empty store in the given file, replacing anything in it.
+    public static PagedStore create(File file, String[] names, String[] types, int poolPages,
+                                    Database db) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new Error("Failed to replace table file.");
+        }
+
+        long stamp = new Random().nextLong();
+        BufferPool pool = new BufferPool(new PageFile(file, true), poolPages);
+        BufferPool.Page meta = pool.allocate();
+
+        try {
+            ByteBuffer buf = meta.data();
+            buf.clear();
+            buf.putInt(MAGIC);
+            buf.putInt(VERSION);
+            buf.putLong(stamp);
+            buf.putInt(names.length);
+
+            for (int col = 0; col < names.length; col++) {
+                writeString(buf, names[col]);
+                writeString(buf, types[col]);
+            }
+        } catch (RuntimeException re) {
+            pool.close();
+            throw new Error("Table header too large for a page.");
+        } finally {
+            pool.release(meta);
+        }
+
+        BTree index = BTree.create(indexFile(file), Type.type(db, types[0]), stamp, pool);
+        return new PagedStore(pool, names, types, index);
+    }
+
+    // Returns the file holding the key index for the store in the given file.
+    public static File indexFile(File file) {
+        return new File(file.getPath() + ".idx");
+    }
+
+    // Adds every row's key to the empty index.
+    private void rebuild() {
+        for (long page = 1; page < pool.pages(); page++) {
+            BufferPool.Page p = pool.get(page);
+
+            try {
+                ByteBuffer buf = p.data();
+
+                for (int slot = 0; slot < slots(buf); slot++) {
+                    if (offset(buf, slot) != 0) {
+                        String key = decode(buf, slot)[0];
+
+                        if (index.get(key) >= 0) {
+                            throw new Error("Key already in use.");
+                        }
+
+                        index.put(key, page * 65536 + slot);
+                    }
+                }
+            } finally {
+                pool.release(p);
+            }
+        }
+
+        index.flush();
+    }
+
+    public String[] names() {
+        return names.clone();
+    }
+
+    public String[] types() {
+        return types.clone();
+    }
+
+    public int rows() {
+        return (int)index.count();
+    }
+
+    public boolean contains(String key) {
+        return index.get(key) >= 0;
+    }
+
+    // Returns the row with the given key, or null if there isn't one.
+    public String[] get(String key) {
+        long rid = index.get(key);
+        return rid < 0 ? null : read(rid);
+    }
+
+    // Returns the row at the given position, counting in page order.
+    public String[] row(int row) {
+        if (row < 0 || row >= rows()) {
+            throw new Error("Bad row.");
+        }
+
+        counts();
+
+        // Finds the last page with no more than row rows before it, so the
+        // row is in the page after.
+        int page = 0;
+        for (int step = Integer.highestOneBit(tree.length); step > 0; step >>= 1) {
+            if (page + step < tree.length && tree[page + step] <= row) {
+                page += step;
+                row -= tree[page];
+            }
+        }
+
+        BufferPool.Page p = pool.get(page + 1);
+
+        try {
+            ByteBuffer buf = p.data();
+
+            for (int slot = 0; ; slot++) {
+                if (offset(buf, slot) != 0 && row-- == 0) {
+                    return decode(buf, slot);
+                }
+            }
+        } finally {
+            pool.release(p);
+        }
+    }
+
+    // Counts the rows in each page, if not yet counted. Readers may share the
+    // store, so only one of them counts.
+    private synchronized void counts() {
+        if (live == null) {
+            count();
+        }
+    }
+
+    // Counts the rows and the room in each page.
+    private void count() {
+        int[] live = new int[(int)Math.max(pool.pages(), 1)];
+        free = new int[live.length];
+        roomy = buckets();
+
+        for (long page = 1; page < pool.pages(); page++) {
+            BufferPool.Page p = pool.get(page);
+
+            try {
+                ByteBuffer buf = p.data();
+
+                for (int slot = 0; slot < slots(buf); slot++) {
+                    if (offset(buf, slot) != 0) {
+                        live[(int)page]++;
+                    }
+                }
+
+                free[(int)page] = room(buf);
+
+                if (free[(int)page] > 0) {
+                    roomy[bucket(free[(int)page])].set((int)page);
+                }
+            } finally {
+                pool.release(p);
+            }
+        }
+
+        tree = tree(live);
+        this.live = live;
+    }
+
+    // Returns the Fenwick tree of the given counts, in which each page holds
+    // the sum of the counts from the page after its parent up to itself.
+    private static int[] tree(int[] live) {
+        int[] tree = live.clone();
+
+        for (int i = 1; i < tree.length; i++) {
+            int parent = i + (i & -i);
+
+            if (parent < tree.length) {
+                tree[parent] += tree[i];
+            }
+        }
+
+        return tree;
+    }
+
+    // Makes room in the counts for the given page.
+    private void grow(long page) {
+        if (page >= live.length) {
+            int size = (int)Math.max(page + 1, live.length * 2L);
+            free = Arrays.copyOf(free, size);
+            tree = tree(Arrays.copyOf(live, size));
+            live = Arrays.copyOf(live, size);
+        }
+    }
+
+    // Notes a row added to or removed from a page, if the rows are counted.
+    private void counted(long page, int change) {
+        if (live == null) {
+            return;
+        }
+
+        grow(page);
+        live[(int)page] += change;
+
+        for (int i = (int)page; i < tree.length; i += i & -i) {
+            tree[i] += change;
+        }
+    }
+
+    // Notes the room left in a page after changing it, if the rows are counted.
+    private void roomed(long page, ByteBuffer buf) {
+        if (live == null) {
+            return;
+        }
+
+        grow(page);
+
+        if (free[(int)page] > 0) {
+            roomy[bucket(free[(int)page])].clear((int)page);
+        }
+
+        free[(int)page] = room(buf);
+
+        if (free[(int)page] > 0) {
+            roomy[bucket(free[(int)page])].set((int)page);
+        }
+    }
+
+    private static BitSet[] buckets() {
+        BitSet[] buckets = new BitSet[bucket(PageFile.PAGE_SIZE) + 1];
+
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new BitSet();
+        }
+
+        return buckets;
+    }
+
+    // Returns the largest power of two no more than n, as an exponent, or -1
+    // if n is 0.
+    private static int bucket(int n) {
+        return 31 - Integer.numberOfLeadingZeros(n);
+    }
+
+    private String[] read(long rid) {
+        BufferPool.Page p = pool.get(rid >>> 16);
+
+        try {
+            return decode(p.data(), (int)(rid & 0xffff));
+        } finally {
+            pool.release(p);
+        }
+    }
+
+    // Returns the rows with keys from lo to hi inclusive, as ordered by the key
+    // column's type, reading each row as it is reached. Either bound may be
+    // null to leave that end open.
+    public Iterator<String[]> range(String lo, String hi) {
+        final Iterator<Map.Entry<String, Long>> keys = index.range(lo, hi);
+
+        return new Iterator<String[]>() {
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            public String[] next() {
+                return read(keys.next().getValue());
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Returns the rows with keys from lo to hi inclusive, in page order, as
+    // scan() finds them. Where each row is, is read from the index first, so a
+    // row moved since is looked up by its key again, and one deleted skipped.
+    public Iterator<String[]> inPageOrder(String lo, String hi) {
+        Iterator<Map.Entry<String, Long>> keys = index.range(lo, hi);
+        final ArrayList<Map.Entry<String, Long>> found = new ArrayList<Map.Entry<String, Long>>();
+
+        while (keys.hasNext()) {
+            found.add(keys.next());
+        }
+
+        Collections.sort(found, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return Long.compare(a.getValue(), b.getValue());
+            }
+        });
+
+        return new Iterator<String[]>() {
+            private int next = 0;
+            private String[] row;
+
+            public boolean hasNext() {
+                while (row == null && next < found.size()) {
+                    Map.Entry<String, Long> e = found.get(next++);
+                    row = read(e.getValue(), e.getKey());
+                }
+
+                return row != null;
+            }
+
+            public String[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                String[] ret = row;
+                row = null;
+                return ret;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Returns the row with the given key, reading it from the given page and
+    // slot if it is still there, or null if it has been deleted.
+    private String[] read(long rid, String key) {
+        BufferPool.Page p = pool.get(rid >>> 16);
+
+        try {
+            ByteBuffer buf = p.data();
+            int slot = (int)(rid & 0xffff);
+
+            if (slot < slots(buf) && offset(buf, slot) != 0) {
+                String[] row = decode(buf, slot);
+
+                if (row[0].equals(key)) {
+                    return row;
+                }
+            }
+        } finally {
+            pool.release(p);
+        }
+
+        return get(key);
+    }
+
+    // Adds a row, whose key must not be in use.
+    public void insert(String[] values) {
+        byte[] row = encode(values);
+        long page = pool.pages() - 1;
+        long rid = -1;
+
+        if (values[0].getBytes(StandardCharsets.UTF_8).length > BTree.MAX_KEY) {
+            throw new Error("Key too long for index.");
+        }
+
+        index.changing();
+
+        if (page > 0) {
+            rid = place(page, -1, row);
+        }
+
+        // Rows deleted from earlier pages leave room there. Every page in a
+        // bucket above the row's length has room for it.
+        if (rid < 0 && page > 0) {
+            counts();
+
+            for (int b = bucket(row.length - 1) + 1; b < roomy.length && rid < 0; b++) {
+                for (int i = roomy[b].nextSetBit(1); i >= 0 && rid < 0; i = roomy[b].nextSetBit(i + 1)) {
+                    rid = place(i, -1, row);
+                }
+            }
+        }
+
+        if (rid < 0) {
+            BufferPool.Page p = pool.allocate();
+            page = p.number();
+            pool.release(p);
+            rid = place(page, -1, row);
+        }
+
+        index.put(values[0], rid);
+        counted(rid >>> 16, 1);
+    }
+
+    // Replaces the row with the given key. The row is kept in its page if it
+    // still fits, and moved to the end otherwise.
+    public void update(String key, String[] values) {
+        long rid = index.get(key);
+        if (rid < 0) {
+            throw new Error("Updating non-existant row.");
+        }
+
+        byte[] row = encode(values);
+        long page = rid >>> 16;
+
+        if (values[0].getBytes(StandardCharsets.UTF_8).length > BTree.MAX_KEY) {
+            throw new Error("Key too long for index.");
+        }
+
+        index.changing();
+
+        if (place(page, (int)(rid & 0xffff), row) < 0) {
+            delete(key);
+            insert(values);
+            return;
+        }
+
+        if (!key.equals(values[0])) {
+            index.remove(key);
+            index.put(values[0], rid);
+        }
+    }
+
+    public void delete(String key) {
+        index.changing();
+
+        long rid = index.remove(key);
+        if (rid < 0) {
+            throw new Error("Deleting non-existant row.");
+        }
+
+        BufferPool.Page p = pool.get(rid >>> 16);
+
+        try {
+            ByteBuffer buf = p.data();
+            int slot = (int)(rid & 0xffff);
+
+            buf.putChar(HEADER + slot * SLOT, (char)0);
+            buf.putChar(HEADER + slot * SLOT + 2, (char)0);
+            p.dirty();
+            roomed(p.number(), buf);
+        } finally {
+            pool.release(p);
+        }
+
+        counted(rid >>> 16, -1);
+    }
+
+    // Puts a row in a page, in the given slot or an empty one if the slot is
+    // -1, compacting the page if needed. Returns its page and slot, or -1 if it
+    // doesn't fit, in which case the page is left unchanged.
+    private long place(long page, int slot, byte[] row) {
+        BufferPool.Page p = pool.get(page);
+
+        try {
+            ByteBuffer buf = p.data();
+            int slots = slots(buf);
+            int need = row.length;
+
+            if (slot < 0) {
+                slot = 0;
+                while (slot < slots && offset(buf, slot) != 0) {
+                    slot++;
+                }
+
+                if (slot == slots) {
+                    need += SLOT;
+                }
+            } else if (row.length <= length(buf, slot)) {
+                // Shrinking, so write over the old row.
+                buf.position(offset(buf, slot));
+                buf.put(row);
+                buf.putChar(HEADER + slot * SLOT + 2, (char)row.length);
+                p.dirty();
+                roomed(page, buf);
+                return page * 65536 + slot;
+            }
+
+            int used = 0;
+            for (int i = 0; i < slots; i++) {
+                if (i != slot) {
+                    used += length(buf, i);
+                }
+            }
+
+            int end = HEADER + slots * SLOT;
+            if (slots == 65535 || PageFile.PAGE_SIZE - end - used < need) {
+                roomed(page, buf);
+                return -1;
+            }
+
+            if (start(buf) - end < need) {
+                compact(buf, slot);
+            }
+
+            int offset = start(buf) - row.length;
+            buf.position(offset);
+            buf.put(row);
+            buf.putChar(2, (char)offset);
+            buf.putChar(HEADER + slot * SLOT, (char)offset);
+            buf.putChar(HEADER + slot * SLOT + 2, (char)row.length);
+
+            if (slot == slots) {
+                buf.putChar(0, (char)(slots + 1));
+            }
+
+            p.dirty();
+            roomed(page, buf);
+            return page * 65536 + slot;
+        } finally {
+            pool.release(p);
+        }
+    }
+
+    // Moves the rows in a page to the end, leaving the free space in one
+    // piece. The row in the given slot is dropped, as it is being replaced.
+    private static void compact(ByteBuffer buf, int skip) {
+        byte[] old = new byte[PageFile.PAGE_SIZE];
+        buf.clear();
+        buf.get(old);
+
+        int start = PageFile.PAGE_SIZE;
+        for (int slot = 0; slot < slots(buf); slot++) {
+            int offset = offset(buf, slot);
+
+            if (offset != 0 && slot != skip) {
+                int len = length(buf, slot);
+                start -= len;
+                buf.position(start);
+                buf.put(old, offset, len);
+                buf.putChar(HEADER + slot * SLOT, (char)start);
+            }
+        }
+
+        buf.putChar(2, (char)start);
+    }
+
+    // Returns every row, in page order, reading a page at a time.
+    public Iterator<String[]> scan() {
+        return new Iterator<String[]>() {
+            private long page = 0;
+            private final ArrayList<String[]> found = new ArrayList<String[]>();
+            private int next = 0;
+
+            public boolean hasNext() {
+                while (next == found.size() && page + 1 < pool.pages()) {
+                    page++;
+                    found.clear();
+                    next = 0;
+
+                    BufferPool.Page p = pool.get(page);
+                    try {
+                        ByteBuffer buf = p.data();
+
+                        for (int slot = 0; slot < slots(buf); slot++) {
+                            if (offset(buf, slot) != 0) {
+                                found.add(decode(buf, slot));
+                            }
+                        }
+                    } finally {
+                        pool.release(p);
+                    }
+                }
+
+                return next < found.size();
+            }
+
+            public String[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                return found.get(next++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Writes every change to the file, then the index, which is only marked
+    // complete once the pages it points to are on disk.
+    public void flush() {
+        pool.flush();
+        index.flush();
+    }
+
+    public void close() {
+        pool.close();
+        index.close();
+    }
+
+    // Returns the bytes a page has free for another row, leaving room for
+    // its slot.
+    private static int room(ByteBuffer buf) {
+        int used = 0;
+
+        for (int slot = 0; slot < slots(buf); slot++) {
+            used += length(buf, slot);
+        }
+
+        return PageFile.PAGE_SIZE - HEADER - (slots(buf) + 1) * SLOT - used;
+    }
+
+    private static int slots(ByteBuffer buf) {
+        return buf.getChar(0);
+    }
+
+    // Returns the start of the row data. A page never written reads as zeros,
+    // so a start of 0 means the page is empty.
+    private static int start(ByteBuffer buf) {
+        int start = buf.getChar(2);
+        return start == 0 ? PageFile.PAGE_SIZE : start;
+    }
+
+    private static int offset(ByteBuffer buf, int slot) {
+        return buf.getChar(HEADER + slot * SLOT);
+    }
+
+    private static int length(ByteBuffer buf, int slot) {
+        return buf.getChar(HEADER + slot * SLOT + 2);
+    }
+
+    private byte[] encode(String[] values) {
+        if (values.length != names.length) {
+            throw new Error("Record length does not match table.");
+        }
+
+        byte[][] bytes = new byte[values.length][];
+        int len = 0;
+
+        for (int col = 0; col < values.length; col++) {
+            bytes[col] = values[col].getBytes(StandardCharsets.UTF_8);
+            len += 2 + bytes[col].length;
+        }
+
+        if (len > PageFile.PAGE_SIZE - HEADER - SLOT) {
+            throw new Error("Row too large for a page.");
+        }
+
+        ByteBuffer row = ByteBuffer.allocate(len);
+        for (byte[] value : bytes) {
+            row.putChar((char)value.length);
+            row.put(value);
+        }
+
+        return row.array();
+    }
+
+    private String[] decode(ByteBuffer buf, int slot) {
+        String[] values = new String[names.length];
+        int pos = offset(buf, slot);
+
+        for (int col = 0; col < values.length; col++) {
+            int len = buf.getChar(pos);
+            values[col] = new String(buf.array(), pos + 2, len, StandardCharsets.UTF_8);
+            pos += 2 + len;
+        }
+
+        return values;
+    }
+
+    private static void writeString(ByteBuffer buf, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buf.putInt(bytes.length);
+        buf.put(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) {
+        File f = new File("paged_test" + EXTENSION);
+        File idx = indexFile(f);
+        Database db = new Database();
+
+        try {
+            // A pool much smaller than the table, so pages are evicted and read back.
+            PagedStore s = create(f, new String[] {"Key", "Value"},
+                                  new String[] {"string", "string"}, 4, db);
+
+            for (int i = 0; i < 5000; i++) {
+                s.insert(new String[] {"k" + i, "value " + i});
+            }
+            for (int i = 0; i < 5000; i += 2) {
+                s.delete("k" + i);
+            }
+
+            // New rows go in the space deleted rows left.
+            long pages = s.pool.pages();
+            for (int i = 0; i < 2000; i++) {
+                s.insert(new String[] {"n" + i, "value " + i});
+            }
+            for (int i = 0; i < 2000; i++) {
+                s.delete("n" + i);
+            }
+            if (s.pool.pages() != pages) {
+                throw new Error("Space left by deletes not used again.");
+            }
+
+            // Rows are found by position as the counts change.
+            Iterator<String[]> rows = s.scan();
+            for (int i = 0; rows.hasNext(); i++) {
+                if (!rows.next()[0].equals(s.row(i)[0])) {
+                    throw new Error("Paged row found incorrectly.");
+                }
+            }
+
+            // Grow rows so some no longer fit in their page.
+            char[] pad = new char[500];
+            Arrays.fill(pad, 'x');
+            for (int i = 1; i < 200; i += 2) {
+                s.update("k" + i, new String[] {"k" + i, new String(pad) + i});
+            }
+            s.update("k4999", new String[] {"last", "shrunk"});
+            s.close();
+
+            s = new PagedStore(f, 4, db);
+            if (s.rows() != 2500 || s.get("k0") != null || !"shrunk".equals(s.get("last")[1])
+                || !(new String(pad) + 101).equals(s.get("k101")[1])
+                || !"value 3001".equals(s.get("k3001")[1])) {
+                throw new Error("Paged rows read back incorrectly.");
+            }
+
+            int count = 0;
+            Iterator<String[]> it = s.scan();
+            while (it.hasNext()) {
+                String[] row = it.next();
+                if (!row[0].equals(s.row(count)[0]) || s.get(row[0]) == null) {
+                    throw new Error("Paged scan incorrect.");
+                }
+                count++;
+            }
+            if (count != 2500) {
+                throw new Error("Paged scan missed rows.");
+            }
+
+            Iterator<String[]> range = s.range("k4990", "k4999");
+            if (!"k4991".equals(range.next()[0]) || !"k4993".equals(range.next()[0])) {
+                throw new Error("Paged key range incorrect.");
+            }
+
+            // A missing index should be rebuilt from the pages.
+            s.close();
+            idx.delete();
+            s = new PagedStore(f, 4, db);
+            if (s.rows() != 2500 || !"value 3001".equals(s.get("k3001")[1])) {
+                throw new Error("Paged index not rebuilt.");
+            }
+
+            s.close();
+            f.delete();
+            idx.delete();
+
+            // A table converted to pages should work as before through its records.
+            Type[] types = {Type.type(db, "string"), Type.type(db, "integer")};
+            Table t = new Table(db, "paged_test", new String[] {"Key", "Num"}, types);
+
+            for (int i = 0; i < 1000; i++) {
+                new Record(t, new String[] {"k" + i, Integer.toString(i)});
+            }
+
+            Record kept = t.select("k7");
+            t.convert(Table.FORMAT.PAGED);
+            kept.field(1, "77");
+
+            t.select("k8").field(0, "eight");
+            t.select("k9").delete();
+            new Record(t, new String[] {"new", "-1"});
+            t.close();
+
+            t = new Table(db, "paged_test");
+            if (t.format() != Table.FORMAT.PAGED || t.rows() != 1000
+                || !"77".equals(t.select("k7").field(1)) || t.select("k8") != null
+                || !"8".equals(t.select("eight").field(1)) || t.select("k9") != null) {
+                throw new Error("Paged table changed incorrectly.");
+            }
+            if (t.select(1, "500").size() != 1 || !"999".equals(t.aggregate(1).max())) {
+                throw new Error("Paged table selected incorrectly.");
+            }
+            if (t.select(0, "k998", null).size() != 3
+                || !"k998".equals(t.byKey("k998", null).next().key())) {
+                throw new Error("Paged table key range incorrect.");
+            }
+            if (!new Query(t).where(1, "<", "0").iterator().next()[0].equals("new")) {
+                throw new Error("Paged table queried incorrectly.");
+            }
+
+            // A key range found with the index gives rows in page order, as a scan would.
+            Iterator<String[]> keys = new Query(t).where(0, "<=", "k10").columns(0).iterator();
+            if (!"k0".equals(keys.next()[0]) || !"k1".equals(keys.next()[0])
+                || !"eight".equals(keys.next()[0]) || !"k10".equals(keys.next()[0]) || keys.hasNext()) {
+                throw new Error("Paged key range out of row order.");
+            }
+
+            // Changes since the pages were last written are kept in the log,
+            // and replayed over the pages if the table isn't closed.
+            t.select("k10").field(1, "1010");
+            t.select("k11").delete();
+            new Record(t, new String[] {"crash", "0"});
+            if (!new File("paged_test.log").exists()) {
+                throw new Error("Paged table changes not logged.");
+            }
+
+            t = new Table(new Database(), "paged_test");
+            if (t.rows() != 1000 || !"1010".equals(t.select("k10").field(1)) || t.select("k11") != null
+                || t.select("crash") == null) {
+                throw new Error("Paged table changes lost.");
+            }
+
+            t.store();
+            if (new File("paged_test.log").exists()) {
+                throw new Error("Log not cleared by storing paged table.");
+            }
+
+            t.convert(Table.FORMAT.TEXT);
+            if (f.exists() || t.rows() != 1000 || !"77".equals(t.select("k7").field(1))) {
+                throw new Error("Paged table not converted back.");
+            }
+        } catch (IOException ioe) {
+            throw new Error("Paged store testing failed.", ioe);
+        } finally {
+            f.delete();
+            idx.delete();
+            PageFile.journalFile(f).delete();
+            new File("paged_test.txt").delete();
+            new File("paged_test.log").delete();
+        }
+    }
+}
@@ -1,14 +1,21 @@
 import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
 
 public class Program {
     private BufferedReader reader;
+    private PrintStream out;
     private Database db;
 
     public Program() {
         InputStreamReader isr = new InputStreamReader(System.in);
         reader = new BufferedReader(isr);
+        out = System.out;
 
         try {
             db = new Database();
@@ -18,21 +25,50 @@ public class Program {
         }
     }
 
+    // Runs a session on a database shared with other sessions, such as one
+    // for a client of the server.
+    public Program(Database db, BufferedReader reader, PrintStream out) {
+        this.db = db;
+        this.reader = reader;
+        this.out = out;
+    }
+
     // Print a line
-    private void p(String out) {
-        System.out.println(out);
+    private void p(String line) {
+        out.println(line);
     }
 
     // Print without a newline
-    private void query(String out) {
-        System.out.print(out);
+    private void query(String line) {
+        out.print(line);
     }
 
+    // Returns the next line typed, or null at the end of the input.
     private String readln() {
+        // Anything printed is shown before waiting for the reply.
+        out.flush();
+
         try {
             return reader.readLine();
         } catch (IOException ioe) {
-            throw new Error("Unable to read user input.");
+            throw new Error("Unable to read user input.", ioe);
+        }
+    }
+
+    // Returns the named table, loading it if needed. Prints why and returns
+    // null if there is no such table or it can't be loaded.
+    private Table table(String name) {
+        try {
+            Table t = db.table(name);
+
+            if (t == null) {
+                p("Table " + name + " does not exist.");
+            }
+
+            return t;
+        } catch (Error e) {
+            p("Unable to open table " + name + ": " + e.getMessage());
+            return null;
         }
     }
 
@@ -44,10 +80,27 @@ public class Program {
         p("    tables          - List tables in the database");
         p("    print <table>   - Display the specified table");
         p("    edit <table>    - Open the specified table for editing");
+        p("    query <table> [select <column>,...] [where <column> <op> <value>");
+        p("          [and ...]] [limit <n>] [offset <n>]");
+        p("                    - Display the matching rows of a table. <op> is");
+        p("                      one of = != < <= > >=, or between <a> and <b>.");
+        p("                      Use \"\" for a blank value.");
+        p("    join <table> <column>");
+        p("                    - Display each row of a table with the row it");
+        p("                      refers to through a ref() column");
+        p("    convert <table> text|binary|paged");
+        p("                    - Store a table in the given file format");
+        p("    import <table> <file> [native|csv|tsv]");
+        p("                    - Add the rows in a file to a table, matching");
+        p("                      columns by the names in its first row");
+        p("    export <table> <file> [native|csv|tsv]");
+        p("                    - Write the rows of a table to a file. The format");
+        p("                      is chosen from the file name, ending .txt, .csv");
+        p("                      or .tsv, if not given.");
         p("----------------------------------------------------------");
     }
 
-    private void run() {
+    public void run() {
         p("DATABASE PROGRAM: By George Field & Alistair Wick");
         p("==========================================================\n");
         showMainHelp();
@@ -55,6 +108,11 @@ public class Program {
         while (true) {
             query("\nQuery=>");
             String in = readln();
+
+            if (in == null) {
+                break;
+            }
+
             String[] splitIn = in.split(" ");
             String cmd = splitIn[0];
 
@@ -65,28 +123,52 @@ public class Program {
             } else if (cmd.equalsIgnoreCase("help")) {
                 showMainHelp();
             } else if (cmd.equalsIgnoreCase("tables")) {
-                Table[] tables = db.tables();
-
                 p("\nAll tables:");
-                for (Table t : tables) {
-                    p("    - " + t.name());
+                for (String name : db.names()) {
+                    p("    - " + name);
                 }
             } else if (cmd.equalsIgnoreCase("print")) {
                 if (splitIn.length == 2) {
-                    Table t = db.table(splitIn[1]);
+                    Table t = table(splitIn[1]);
 
-                    if (t == null) {
-                        p("Table " + splitIn[1] + " does not exist.");
-                    } else {
-                        t.print(System.out);
+                    if (t != null) {
+                        t.print(out);
                     }
                 } else {
                     p("Wrong number of arguments.");
                 }
             } else if (cmd.equalsIgnoreCase("edit")) {
                 if (splitIn.length == 2) {
-                    Table t = db.table(splitIn[1]);
-                    editTable(t);
+                    Table t = table(splitIn[1]);
+
+                    if (t != null) {
+                        editTable(t);
+                    }
+                } else {
+                    p("Wrong number of arguments.");
+                }
+            } else if (cmd.equalsIgnoreCase("join")) {
+                if (splitIn.length >= 3) {
+                    runJoin(splitIn);
+                } else {
+                    p("Wrong number of arguments.");
+                }
+            } else if (cmd.equalsIgnoreCase("query")) {
+                if (splitIn.length >= 2) {
+                    runQuery(splitIn);
+                } else {
+                    p("Wrong number of arguments.");
+                }
+            } else if (cmd.equalsIgnoreCase("import") || cmd.equalsIgnoreCase("export")) {
+                if (splitIn.length == 3 || splitIn.length == 4) {
+                    runTransfer(cmd.equalsIgnoreCase("import"), splitIn[1], splitIn[2],
+                                splitIn.length == 4 ? splitIn[3] : splitIn[2]);
+                } else {
+                    p("Wrong number of arguments.");
+                }
+            } else if (cmd.equalsIgnoreCase("convert")) {
+                if (splitIn.length == 3) {
+                    runConvert(splitIn[1], splitIn[2]);
                 } else {
                     p("Wrong number of arguments.");
                 }
@@ -96,6 +178,282 @@ public class Program {
         }
 
         p("Goodbye.");
+        out.flush();
+    }
+
+    private void runConvert(String name, String format) {
+        Table.FORMAT to = null;
+
+        for (Table.FORMAT f : Table.FORMAT.values()) {
+            if (f.name().equalsIgnoreCase(format)) {
+                to = f;
+            }
+        }
+
+        if (to == null) {
+            p("Format must be text, binary or paged.");
+            return;
+        }
+
+        Table t = table(name);
+        if (t == null) {
+            return;
+        }
+
+        try {
+            t.convert(to);
+            p("Table " + name + " stored as " + to.name().toLowerCase() + ".");
+        } catch (Error e) {
+            p("Unable to convert table " + name + ": " + e.getMessage());
+        }
+    }
+
+    // Imports rows into a table from a file, or exports them to one.
+    private void runTransfer(boolean in, String name, String path, String format) {
+        Importer.FORMAT f;
+
+        try {
+            f = Importer.format(format);
+        } catch (Error e) {
+            p("Format must be native, csv or tsv.");
+            return;
+        }
+
+        Table t = table(name);
+        if (t == null) {
+            return;
+        }
+
+        try {
+            if (in) {
+                FileInputStream fis = new FileInputStream(path);
+                ArrayList<Table.Reject> rejects;
+
+                try {
+                    rejects = Importer.load(t, fis, f);
+                } finally {
+                    fis.close();
+                }
+
+
+                // Only the first few, as a bad file may have a reject per row.
+                for (int i = 0; i < Math.min(rejects.size(), 10); i++) {
+                    Table.Reject r = rejects.get(i);
+                    p("Row " + (r.row + 1) + " rejected: " + r.reason);
+                }
+                p("Imported into table " + name + ", rejected " + rejects.size() + " rows.");
+            } else {
+                FileOutputStream fos = new FileOutputStream(path);
+
+                try {
+                    p("Exported " + Exporter.write(db, t, fos, f) + " rows from table " + name + ".");
+                } finally {
+                    fos.close();
+                }
+            }
+        } catch (IOException ioe) {
+            p("Unable to use file " + path + ": " + ioe.getMessage());
+        } catch (Error e) {
+            p("Unable to " + (in ? "import into" : "export") + " table " + name + ": " + e.getMessage());
+        }
+    }
+
+    private static final String[] QUERY_OPS = {"=", "!=", "<", "<=", ">", ">=", "between"};
+
+    private static boolean isQueryOp(String word) {
+        for (String op : QUERY_OPS) {
+            if (op.equalsIgnoreCase(word)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isQueryClause(String word) {
+        return word.equalsIgnoreCase("where") || word.equalsIgnoreCase("limit")
+            || word.equalsIgnoreCase("offset");
+    }
+
+    // Returns the value typed in a query, where "" stands for blank.
+    private static String queryValue(String word) {
+        return word.equals("\"\"") ? "" : word;
+    }
+
+    // Returns the column with the given name, which may contain spaces.
+    private static int queryColumn(Table t, String name) {
+        int col = t.column(name.trim());
+
+        if (col < 0) {
+            throw new Error("No such column \"" + name.trim() + "\".");
+        }
+
+        return col;
+    }
+
+    // Runs a query typed as words split on spaces. Column names may contain
+    // spaces, so a condition's column is all the words before its operator.
+    private void runQuery(String[] words) {
+        Table t = table(words[1]);
+
+        if (t == null) {
+            return;
+        }
+
+        Query q = new Query(t);
+        int[] cols = null;
+
+        try {
+            int i = 2;
+
+            if (i < words.length && words[i].equalsIgnoreCase("select")) {
+                StringBuilder names = new StringBuilder();
+
+                for (i++; i < words.length && !isQueryClause(words[i]); i++) {
+                    names.append(words[i]).append(' ');
+                }
+
+                String[] split = names.toString().split(",");
+                cols = new int[split.length];
+                for (int j = 0; j < split.length; j++) {
+                    cols[j] = queryColumn(t, split[j]);
+                }
+                q.columns(cols);
+            }
+
+            if (i < words.length && words[i].equalsIgnoreCase("where")) {
+                do {
+                    StringBuilder name = new StringBuilder();
+
+                    for (i++; i < words.length && !isQueryOp(words[i]); i++) {
+                        name.append(words[i]).append(' ');
+                    }
+
+                    if (i + 1 >= words.length) {
+                        throw new Error("Condition incomplete.");
+                    }
+
+                    int col = queryColumn(t, name.toString());
+                    String op = words[i];
+
+                    if (op.equalsIgnoreCase("between")) {
+                        if (i + 3 >= words.length || !words[i + 2].equalsIgnoreCase("and")) {
+                            throw new Error("Condition incomplete.");
+                        }
+
+                        q.between(col, queryValue(words[i + 1]), queryValue(words[i + 3]));
+                        i += 4;
+                    } else {
+                        q.where(col, op, queryValue(words[i + 1]));
+                        i += 2;
+                    }
+                } while (i < words.length && words[i].equalsIgnoreCase("and"));
+            }
+
+            if (i + 1 < words.length && words[i].equalsIgnoreCase("limit")) {
+                q.limit(Integer.parseInt(words[i + 1]));
+                i += 2;
+            }
+
+            if (i + 1 < words.length && words[i].equalsIgnoreCase("offset")) {
+                q.offset(Integer.parseInt(words[i + 1]));
+                i += 2;
+            }
+
+            if (i != words.length) {
+                throw new Error("Unexpected \"" + words[i] + "\".");
+            }
+        } catch (NumberFormatException nfe) {
+            p("Invalid query: Bad number.");
+            return;
+        } catch (Error e) {
+            p("Invalid query: " + e.getMessage());
+            return;
+        }
+
+        if (cols == null) {
+            cols = new int[t.columns()];
+            for (int col = 0; col < cols.length; col++) {
+                cols[col] = col;
+            }
+        }
+
+        String[] names = new String[cols.length];
+        for (int j = 0; j < cols.length; j++) {
+            names[j] = t.name(cols[j]);
+        }
+        p(join(names));
+
+        int count = 0;
+        for (String[] row : q) {
+            p(join(row));
+            count++;
+        }
+
+        p("\n" + count + " row(s) found.");
+    }
+
+    // Runs a join typed as words split on spaces, where the column name may
+    // contain spaces.
+    private void runJoin(String[] words) {
+        Table t = table(words[1]);
+
+        if (t == null) {
+            return;
+        }
+
+        StringBuilder name = new StringBuilder();
+        for (int i = 2; i < words.length; i++) {
+            name.append(words[i]).append(' ');
+        }
+
+        Join j;
+        try {
+            j = new Join(t, queryColumn(t, name.toString()));
+        } catch (Error e) {
+            p("Invalid join: " + e.getMessage());
+            return;
+        }
+
+        Table ref = j.referenced();
+        String[] names = new String[t.columns() + ref.columns()];
+        for (int col = 0; col < t.columns(); col++) {
+            names[col] = t.name(col);
+        }
+        for (int col = 0; col < ref.columns(); col++) {
+            names[t.columns() + col] = ref.name() + "." + ref.name(col);
+        }
+        p(join(names));
+
+        int count = 0;
+        for (Record[] pair : j) {
+            String[] row = new String[names.length];
+
+            for (int col = 0; col < t.columns(); col++) {
+                row[col] = pair[0].field(col);
+            }
+            for (int col = 0; col < ref.columns(); col++) {
+                row[t.columns() + col] = pair[1].field(col);
+            }
+
+            p(join(row));
+            count++;
+        }
+
+        p("\n" + count + " row(s) found.");
+    }
+
+    private static String join(String[] fields) {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append(" | ");
+            }
+            sb.append(fields[i]);
+        }
+
+        return sb.toString();
     }
 
     private void showTableHelp() {
@@ -103,6 +461,7 @@ public class Program {
         p("Table edit commands:");
         p("    help          - Display this command list");
         p("    done          - Stop editing and save changes to disc");
+        p("    cancel        - Stop editing and discard changes");
         p("    print         - Display the open table");
         p("    edit <key>    - Modify record at <key>");
         p("    replace <key> - Replace record at <key>");
@@ -111,61 +470,95 @@ public class Program {
         p("----------------------------------------------------------");
     }
 
+    // Edits a table in a transaction, so the changes are only seen by others
+    // once done, all together.
     private void editTable(Table t) {
         if (t == null) {
             p("No such table.");
             return;
         }
 
+        Transaction tx = db.begin();
         showTableHelp();
 
+        try {
+            if (!editTable(tx, t)) {
+                tx.rollback();
+                p("Discarded changes to table: " + t.name());
+                return;
+            }
+        } catch (Error e) {
+            // Don't leave the transaction's snapshot in use.
+            tx.rollback();
+            throw e;
+        }
+
+        try {
+            tx.commit();
+        } catch (Error e) {
+            p("Unable to save changes: " + e.getMessage());
+            return;
+        }
+
+        p("Finished editing table: " + t.name());
+    }
+
+    // Runs table edit commands until done, returning true, or cancelled or
+    // the input ends, returning false.
+    private boolean editTable(Transaction tx, Table t) {
         while (true) {
             query("\nEditing " + t.name() + "=>");
             String in = readln();
+
+            if (in == null) {
+                return false;
+            }
+
             String[] splitIn = in.split(" ");
             String cmd = splitIn[0];
 
             p("");
 
             if (cmd.equalsIgnoreCase("done")) {
-                break;
+                return true;
+            } else if (cmd.equalsIgnoreCase("cancel")) {
+                return false;
             } else if (cmd.equalsIgnoreCase("help")) {
                 showTableHelp();
             } else if (cmd.equalsIgnoreCase("print")) {
-                t.print(System.out);
+                tx.print(t, out);
             } else if (cmd.equalsIgnoreCase("edit")) {
                 if (splitIn.length == 2) {
-                    editRecord(t, t.select(splitIn[1]));
+                    editRecord(tx, t, splitIn[1]);
                 } else {
                     p("Wrong number of arguments.");
                 }
             } else if (cmd.equalsIgnoreCase("replace")) {
                 if (splitIn.length == 2) {
-                    replaceRecord(t, t.select(splitIn[1]));
+                    replaceRecord(tx, t, splitIn[1]);
                 } else {
                     p("Wrong number of arguments.");
                 }
             } else if (cmd.equalsIgnoreCase("delete")) {
                 if (splitIn.length == 2) {
-                    deleteRecord(t.select(splitIn[1]));
+                    deleteRecord(tx, t, splitIn[1]);
                 } else {
                     p("Wrong number of arguments.");
                 }
             } else if (cmd.equalsIgnoreCase("add")) {
                 if (splitIn.length == 2) {
-                    addRecord(t, splitIn[1]);
+                    addRecord(tx, t, splitIn[1]);
                 }
             } else {
                 p("No such command. Type \"help\" for command list.");
             }
         }
-
-        t.store();
-        p("Finished editing table: " + t.name());
     }
 
-    private void editRecord(Table t, Record r) {
-        if (r == null) {
+    private void editRecord(Transaction tx, Table t, String key) {
+        String[] row = tx.select(t, key);
+
+        if (row == null) {
             p("No such record.");
         } else {
             query("Enter name of column to change: ");
@@ -173,45 +566,75 @@ public class Program {
             query("Enter new value for field: ");
             String val = readln();
 
+            if (col == null || val == null) {
+                return;
+            }
+
             try {
-                String orig = r.field(t.column(col));
-                r.field(t.column(col), val);
-                p("Changed \"" + orig + "\" to \"" + val + "\".");
+                tx.update(t, key, t.column(col), val);
+                p("Changed \"" + row[t.column(col)] + "\" to \"" + val + "\".");
             } catch (Error e) {
                 p("Unable to modify: " + e.getMessage());
             }
         }
     }
 
-    private void replaceRecord(Table t, Record r) {
-        if (r == null) {
+    private void replaceRecord(Transaction tx, Table t, String key) {
+        if (tx.select(t, key) == null) {
             p("No such record.");
         } else {
-            String key = r.key();
-            r.delete();
-            addRecord(t, key);
+            String[] values = readValues(t, key);
+
+            if (values != null) {
+                try {
+                    tx.replace(t, values);
+                } catch (Error e) {
+                    p("Unable to replace record: " + e.getMessage());
+                }
+            }
         }
     }
 
-    private void deleteRecord(Record r) {
-        if (r == null) {
+    private void deleteRecord(Transaction tx, Table t, String key) {
+        if (tx.select(t, key) == null) {
             p("No such record.");
         } else {
-            r.delete();
-            p("Successfully deleted record.");
+            try {
+                tx.delete(t, key);
+                p("Successfully deleted record.");
+            } catch (Error e) {
+                p("Unable to delete record: " + e.getMessage());
+            }
         }
     }
 
-    private void addRecord(Table t, String key) {
-        Record r;
-
+    private void addRecord(Transaction tx, Table t, String key) {
         // Ensure a valid key is used
+        if (tx.select(t, key) != null) {
+            p("Unable to add record: Key already in use.");
+            return;
+        } else if (!t.type(0).allowed(key)) {
+            p("Unable to add record: Value not of type " + t.type(0).toString());
+            return;
+        }
+
+        String[] values = readValues(t, key);
+        if (values == null) {
+            return;
+        }
+
         try {
-            r = new Record(t, key);
+            tx.insert(t, values);
         } catch (Error e) {
             p("Unable to add record: " + e.getMessage());
-            return;
         }
+    }
+
+    // Asks for a value for each column after the key. Returns null if the
+    // input ends first.
+    private String[] readValues(Table t, String key) {
+        String[] values = new String[t.columns()];
+        values[0] = key;
 
         // Loop other columns to insert values
         for (int i = 1; i < t.columns(); i++) {
@@ -221,19 +644,65 @@ public class Program {
                 query("Enter value for \"" + t.name(i) + "\": ");
                 String val = readln();
 
+                if (val == null) {
+                    return null;
+                }
+
                 try {
-                    r.field(i, val);
-                    success = true;
+                    success = t.type(i).allowed(val);
                 } catch (Error e) {
+                    success = false;
+                }
+
+                if (success) {
+                    values[i] = val;
+                } else {
                     p("Invalid value \"" + val + "\".");
                 }
             }
         }
 
-        t.store();
+        return values;
+    }
+
+    // Applies the script in the given file, or typed in if null, and returns
+    // the number of lines rejected.
+    private static int runBatch(String path) {
+        InputStream in = System.in;
+
+        try {
+            if (path != null) {
+                in = new FileInputStream(path);
+            }
+
+            return new Batch(new Database(), System.out).run(in);
+        } catch (IOException ioe) {
+            System.out.println("Unable to read script: " + ioe.getMessage());
+            return 1;
+        } catch (Error e) {
+            System.out.println("Unable to run script: " + e.getMessage());
+            return 1;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ioe) {
+                // Already read everything needed.
+            }
+        }
     }
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("serve")) {
+            Server server = new Server(new Database(), args.length > 1 ? Integer.parseInt(args[1]) : 0);
+            System.out.println("Serving on port " + server.port());
+            server.run();
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("batch")) {
+            System.exit(runBatch(args.length > 1 ? args[1] : null) == 0 ? 0 : 1);
+        }
+
         Program p = new Program();
         p.run();
     }
@@ -0,0 +1,335 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// A query over the rows of a table, built up with where(), columns(), limit()
+// and offset(), then iterated to get the matching rows lazily. Where a
+// condition allows it, the key index or a secondary index on the table is
+// used to find candidate rows rather than scanning the whole table.
+//
+// Rows are returned in the table's row order, whether or not an index is
+// used, so offset() and limit() pick the same rows either way. Rows are read
+// from the table as they are iterated, so changes made to the table during
+// iteration may or may not be seen.
+public class Query implements Iterable<String[]> {
+    private final Table table;
+    private final ArrayList<Condition> conditions;
+    private int[] cols;
+    private int limit;
+    private int offset;
+
+    public Query(Table table) {
+        this.table = table;
+        conditions = new ArrayList<Condition>();
+        cols = null;
+        limit = -1;
+        offset = 0;
+    }
+
+    // Adds a condition comparing a column with a value, as the column's type.
+    // The operator is one of =, !=, <, <=, > or >=.
+    public Query where(int col, String op, String value) {
+        if (value == null) {
+            throw new Error("Attempted to query a null value.");
+        }
+
+        checkColumn(col);
+
+        if ("=".equals(op)) {
+            conditions.add(new Condition(col, value, false));
+        } else if ("!=".equals(op)) {
+            conditions.add(new Condition(col, value, true));
+        } else if ("<".equals(op)) {
+            conditions.add(new Condition(col, null, value, false, true));
+        } else if ("<=".equals(op)) {
+            conditions.add(new Condition(col, null, value, false, false));
+        } else if (">".equals(op)) {
+            conditions.add(new Condition(col, value, null, true, false));
+        } else if (">=".equals(op)) {
+            conditions.add(new Condition(col, value, null, false, false));
+        } else {
+            throw new Error("Invalid operator: " + op);
+        }
+
+        return this;
+    }
+
+    // Adds a condition that a column is between lo and hi inclusive.
+    public Query between(int col, String lo, String hi) {
+        if (lo == null || hi == null) {
+            throw new Error("Attempted to query a null value.");
+        }
+
+        checkColumn(col);
+        conditions.add(new Condition(col, lo, hi, false, false));
+        return this;
+    }
+
+    // Chooses the columns returned for each row, in order. All columns are
+    // returned if this isn't called.
+    public Query columns(int... cols) {
+        for (int col : cols) {
+            checkColumn(col);
+        }
+
+        this.cols = cols.clone();
+        return this;
+    }
+
+    public Query limit(int limit) {
+        if (limit < 0) {
+            throw new Error("Bad limit.");
+        }
+
+        this.limit = limit;
+        return this;
+    }
+
+    public Query offset(int offset) {
+        if (offset < 0) {
+            throw new Error("Bad offset.");
+        }
+
+        this.offset = offset;
+        return this;
+    }
+
+    private void checkColumn(int col) {
+        if (col < 0 || col >= table.columns()) {
+            throw new Error("Bad column.");
+        }
+    }
+
+    // Returns the chosen columns of each matching row.
+    public Iterator<String[]> iterator() {
+        final Iterator<Record> matches = records();
+
+        return new Iterator<String[]>() {
+            public boolean hasNext() {
+                return matches.hasNext();
+            }
+
+            public String[] next() {
+                Record r = matches.next();
+                int n = cols == null ? r.fields() : cols.length;
+                String[] row = new String[n];
+
+                for (int i = 0; i < n; i++) {
+                    row[i] = r.field(cols == null ? i : cols[i]);
+                }
+
+                return row;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Returns each matching record, ignoring the chosen columns.
+    public Iterator<Record> records() {
+        return new Matches(candidates());
+    }
+
+    // Finds the records to check the conditions against, using an index if
+    // one of the conditions allows it.
+    private Iterator<Record> candidates() {
+        Condition best = null;
+
+        for (Condition c : conditions) {
+            if (c.negated) {
+                continue;
+            } else if (c.col == 0 && c.equal && !table.type(0).integer()) {
+                // A key lookup finds at most one record, so can't be beaten.
+                // Integer keys are left out, as "7" should also find "007".
+                best = c;
+                break;
+            } else if (table.indexed(c.col) && (best == null || c.equal)) {
+                best = c;
+            }
+        }
+
+        if (best == null) {
+            return table.scan();
+        } else {
+            return table.inRowOrder(best.col, best.lo, best.hi, best.equal);
+        }
+    }
+
+    // Returns true if the record meets every condition.
+    private boolean matches(Record r) {
+        for (Condition c : conditions) {
+            if (!c.matches(r)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // A condition that a column is equal to a value, or between two bounds,
+    // possibly negated. A null bound is open.
+    private class Condition {
+        private final int col;
+        private final String lo;
+        private final String hi;
+        private final boolean loExclusive;
+        private final boolean hiExclusive;
+        private final boolean equal;
+        private final boolean negated;
+
+        public Condition(int col, String value, boolean negated) {
+            this.col = col;
+            lo = value;
+            hi = value;
+            loExclusive = false;
+            hiExclusive = false;
+            equal = true;
+            this.negated = negated;
+        }
+
+        public Condition(int col, String lo, String hi, boolean loExclusive, boolean hiExclusive) {
+            this.col = col;
+            this.lo = lo;
+            this.hi = hi;
+            this.loExclusive = loExclusive;
+            this.hiExclusive = hiExclusive;
+            equal = false;
+            negated = false;
+        }
+
+        public boolean matches(Record r) {
+            if (equal) {
+                return (table.compare(r, col, lo) == 0) != negated;
+            }
+
+            if (lo != null) {
+                int c = table.compare(r, col, lo);
+
+                if (loExclusive ? c <= 0 : c < 0) {
+                    return false;
+                }
+            }
+            if (hi != null) {
+                int c = table.compare(r, col, hi);
+
+                if (hiExclusive ? c >= 0 : c > 0) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    // Filters the candidate records by the conditions, then applies the
+    // offset and limit, reading only as many candidates as are needed.
+    private class Matches implements Iterator<Record> {
+        private final Iterator<Record> candidates;
+        private Record next;
+        private int skip;
+        private int left;
+
+        public Matches(Iterator<Record> candidates) {
+            this.candidates = candidates;
+            skip = offset;
+            left = limit;
+        }
+
+        public boolean hasNext() {
+            while (next == null && left != 0 && candidates.hasNext()) {
+                Record r = candidates.next();
+
+                if (matches(r)) {
+                    if (skip > 0) {
+                        skip--;
+                    } else {
+                        next = r;
+                    }
+                }
+            }
+
+            return next != null;
+        }
+
+        public Record next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            Record r = next;
+            next = null;
+            if (left > 0) {
+                left--;
+            }
+
+            return r;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public static void main(String[] args) {
+        Database db = new Database();
+        Type[] types = {
+            Type.type(db, "string"),
+            Type.type(db, "integer"),
+            Type.type(db, "tag(red,green)")
+        };
+        Table t = new Table(db, "query_test", new String[] {"Key", "Num", "Colour"}, types);
+
+        for (int i = 0; i < 100; i++) {
+            new Record(t, new String[] {"k" + i, Integer.toString(i), i % 3 == 0 ? "red" : "green"});
+        }
+
+        int count = 0;
+        for (String[] row : new Query(t).between(1, "10", "19").where(2, "=", "red")) {
+            if (row.length != 3 || Integer.parseInt(row[1]) % 3 != 0) {
+                throw new Error("Query returned wrong row.");
+            }
+            count++;
+        }
+        if (count != 3) {
+            throw new Error("Query returned wrong number of rows.");
+        }
+
+        // The same query should give the same rows when it can use an index.
+        t.createIndex(1);
+        Iterator<String[]> it = new Query(t).where(1, ">", "10").where(2, "=", "red")
+            .columns(0).offset(1).limit(2).iterator();
+
+        if (!"k15".equals(it.next()[0]) || !"k18".equals(it.next()[0]) || it.hasNext()) {
+            throw new Error("Indexed query returned wrong rows.");
+        }
+
+        it = new Query(t).where(0, "=", "k42").where(1, "!=", "42").iterator();
+        if (it.hasNext()) {
+            throw new Error("Key query returned wrong rows.");
+        }
+
+        // Rows come in row order whether or not an index is used, so offset
+        // and limit pick the same rows.
+        Table u = new Table(db, "query_order", new String[] {"Key", "Num", "Colour"}, types);
+        for (int i = 0; i < 50; i++) {
+            new Record(u, new String[] {"r" + i, Integer.toString(50 - i), "red"});
+        }
+
+        ArrayList<String> scanned = new ArrayList<String>();
+        for (String[] row : new Query(u).where(1, "<=", "20").offset(2).limit(5)) {
+            scanned.add(row[0]);
+        }
+
+        u.createIndex(1);
+        ArrayList<String> indexed = new ArrayList<String>();
+        for (String[] row : new Query(u).where(1, "<=", "20").offset(2).limit(5)) {
+            indexed.add(row[0]);
+        }
+
+        if (!"r32".equals(scanned.get(0)) || scanned.size() != 5 || !scanned.equals(indexed)) {
+            throw new Error("Indexed query returned rows in a different order.");
+        }
+    }
+}
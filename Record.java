@@ -1,6 +1,9 @@
 public class Record {
+    // A null field has its value held by the table, in a column store.
     private String[] fields;
     private final Table parent;
+    // Position of this record in its table's storage, or -1 if not stored.
+    private int slot = -1;
 
     public Record(Table table, String key) {
         parent = table;
@@ -77,12 +80,29 @@ public class Record {
         parent.insert(this);
     }
 
+    // Internal constructor for use by table loading, which has already checked
+    // the values. The array is used as is, and the record is not inserted.
+    Record(Table table, String[] values, int slot) {
+        parent = table;
+        fields = values;
+        this.slot = slot;
+    }
+
     private boolean checkBounds(int col) {
         return col >= 0 && col < fields.length;
     }
 
     public String field(int col) {
+        return parent.field(this, col);
+    }
+
+    // Reads a field without locking, for the parent table to do under its lock.
+    String read(int col) {
         if (checkBounds(col)) {
+            if (fields[col] == null && slot >= 0) {
+                return parent.value(slot, col);
+            }
+
             return fields[col];
         } else {
             throw new Error("Bad column.");
@@ -92,17 +112,7 @@ public class Record {
     public void field(int col, String value) {
         if (checkBounds(col)) {
             if (value != null) {
-                if (col == 0 && parent.select(value) != null) {
-                    throw new Error("Key already in use.");
-                }
-
-                Type type = parent.type(col);
-
-                if (!type.allowed(value)) {
-                    throw new Error("Value not of type " + type.toString());
-                }
-
-                fields[col] = value;
+                parent.set(this, col, value);
             } else {
                 throw new Error("Attempted to store a null value.");
             }
@@ -111,13 +121,38 @@ public class Record {
         }
     }
 
+    int slot() {
+        return slot;
+    }
+
+    // Internal method for use by the parent table
+    void slot(int slot) {
+        this.slot = slot;
+    }
+
+    // Returns the field as stored in this record, which is null if the table
+    // holds the value instead.
+    String stored(int col) {
+        return fields[col];
+    }
+
+    // Internal method for use by the parent table
+    void stored(int col, String value) {
+        fields[col] = value;
+    }
+
+    // Returns the table the record belongs to.
+    Table table() {
+        return parent;
+    }
+
     public int fields() {
         return fields.length;
     }
 
     public String key() {
         if (fields.length > 0) {
-            return fields[0];
+            return field(0);
         } else {
             throw new Error("Bad column.");
         }
@@ -129,8 +164,9 @@ public class Record {
         }
 
         if (parent.select(key()) != null) {
-            fields = null;
+            // Remove from the table first, as it needs the key to update its index.
             parent.delete(this);
+            fields = null;
         } else {
             throw new Error("Attempted to delete header.");
         }
@@ -175,6 +211,9 @@ public class Record {
         if (!t.select("apple").equals(r)) {
             throw new Error("Record not in table.");
         }
+        if (t.select(values[0]) != null) {
+            throw new Error("Old key still in table.");
+        }
 
         r.delete();
         if (t.select("apple") != null) {
@@ -0,0 +1,268 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Serves the program's commands to clients on this machine, one session per
+// connection, all sharing one database. Each line a client sends is read as
+// if typed at the program, and it is sent back what the program would print.
+public class Server {
+    // How long a client may send nothing before its session is ended.
+    private static final int IDLE_TIMEOUT = 10 * 60 * 1000;
+
+    private final Database db;
+    private final ServerSocket socket;
+    private final ExecutorService sessions;
+    private final int timeout;
+
+    // Listens on the given port, or any free port if 0.
+    public Server(Database db, int port) {
+        this(db, port, IDLE_TIMEOUT);
+    }
+
+    // Ends sessions whose client sends nothing for the given milliseconds.
+    public Server(Database db, int port, int timeout) {
+        this.db = db;
+        this.timeout = timeout;
+
+        try {
+            socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        } catch (IOException ioe) {
+            throw new Error("Unable to listen on port " + port + ".", ioe);
+        }
+
+        sessions = executor();
+    }
+
+    // Returns an executor that runs each session on a thread of its own. Where
+    // the JVM has virtual threads these are used, as sessions mostly wait on
+    // their clients; otherwise idle threads are kept for later sessions.
+    private static ExecutorService executor() {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException roe) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public int port() {
+        return socket.getLocalPort();
+    }
+
+    // Accepts connections until closed.
+    public void run() {
+        while (true) {
+            Socket client;
+
+            try {
+                client = socket.accept();
+            } catch (IOException ioe) {
+                if (socket.isClosed()) {
+                    return;
+                }
+
+                throw new Error("Unable to accept connection.", ioe);
+            }
+
+            sessions.execute(new Session(client));
+        }
+    }
+
+    // Stops accepting connections and waits for open sessions to end.
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ioe) {
+            throw new Error("Unable to close server.", ioe);
+        }
+
+        sessions.shutdown();
+
+        try {
+            sessions.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new Error("Interrupted waiting for sessions.");
+        }
+    }
+
+    private class Session implements Runnable {
+        private final Socket client;
+
+        public Session(Socket client) {
+            this.client = client;
+        }
+
+        public void run() {
+            PrintStream out = null;
+
+            try {
+                // Replies are flushed whenever the program waits for a line.
+                client.setTcpNoDelay(true);
+                // A client that stops sending can't hold a transaction open.
+                client.setSoTimeout(timeout);
+
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+                out = new PrintStream(new BufferedOutputStream(client.getOutputStream()), false, "UTF-8");
+
+                new Program(db, in, out).run();
+            } catch (SocketException se) {
+                // The client went away.
+            } catch (IOException ioe) {
+                System.err.println("Session failed: " + ioe.getMessage());
+            } catch (Error e) {
+                // The program rolls back an unfinished edit on the way out.
+                if (e.getCause() instanceof SocketTimeoutException) {
+                    out.println("\nSession timed out.");
+                    out.flush();
+                } else if (!(e.getCause() instanceof SocketException)) {
+                    System.err.println("Session failed: " + e.getMessage());
+                }
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException ioe) {
+                    // Nothing more to send.
+                }
+            }
+        }
+    }
+
+    // Sends the given lines to the server as a client, and returns everything
+    // sent back once the server ends the session.
+    private static String send(int port, String lines) {
+        return send(port, lines, true);
+    }
+
+    // As above, but if end is false the client stays connected without
+    // sending more, as if the user walked away.
+    private static String send(int port, String lines, boolean end) {
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            Writer w = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+            w.write(lines);
+            w.flush();
+
+            if (end) {
+                // Ends the input, as if the user stopped typing.
+                s.shutdownOutput();
+            }
+
+            BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            char[] buf = new char[4096];
+            int n;
+
+            while ((n = r.read(buf)) != -1) {
+                sb.append(buf, 0, n);
+            }
+
+            return sb.toString();
+        } catch (IOException ioe) {
+            throw new Error("Unable to talk to server.", ioe);
+        }
+    }
+
+    public static void main(String[] args) {
+        Database db = new Database();
+        Table t = new Table(db, "server_test", new String[] {"Key", "Value"});
+        t.store();
+
+        final Server server = new Server(db, 0);
+        Thread accept = new Thread(new Runnable() {
+            public void run() {
+                server.run();
+            }
+        });
+        accept.start();
+
+        try {
+            // Many clients at once, each with its own session.
+            final int clients = 16;
+            final String[] replies = new String[clients];
+            ArrayList<Thread> threads = new ArrayList<Thread>();
+
+            for (int n = 0; n < clients; n++) {
+                final int c = n;
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        replies[c] = send(server.port(),
+                                "tables\nedit server_test\nadd k" + c + "\nv" + c + "\ndone\nprint people\nexit\n");
+                    }
+                });
+
+                threads.add(thread);
+                thread.start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            for (String reply : replies) {
+                if (reply == null || !reply.contains("    - people") || !reply.contains("Finished editing table: server_test")
+                        || !reply.contains("Goodbye.")) {
+                    throw new Error("Wrong reply from server.");
+                }
+            }
+
+            if (t.rows() != clients) {
+                throw new Error("Edits from clients lost.");
+            }
+
+            // All clients share one copy of each table.
+            String reply = send(server.port(), "print server_test\n");
+            for (int n = 0; n < clients; n++) {
+                if (!reply.contains("k" + n)) {
+                    throw new Error("Edit from another client not seen.");
+                }
+            }
+
+            // A client that leaves mid edit has its changes thrown away.
+            send(server.port(), "edit server_test\ndelete k0\n");
+            if (t.select("k0") == null || db.snapshots()) {
+                throw new Error("Unfinished edit kept.");
+            }
+
+            // So does a client that stops sending and stays connected.
+            final Server idle = new Server(db, 0, 200);
+            Thread idleAccept = new Thread(new Runnable() {
+                public void run() {
+                    idle.run();
+                }
+            });
+            idleAccept.start();
+
+            try {
+                reply = send(idle.port(), "edit server_test\ndelete k1\n", false);
+            } finally {
+                idle.close();
+            }
+
+            if (!reply.contains("Session timed out.") || t.select("k1") == null || db.snapshots()) {
+                throw new Error("Idle session's edit kept.");
+            }
+        } catch (InterruptedException ie) {
+            throw new Error("Interrupted waiting for clients.");
+        } finally {
+            server.close();
+            t.close();
+            new File("server_test.txt").delete();
+            new File("server_test.log").delete();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs many threads against one table at once. Reports how key lookups scale
+// with the number of reading threads, then checks that readers and writers
+// working together leave the table as it should be. Finally reports how many
+// changes a second reach the disk as the number of writing threads grows.
+public class StressTest {
+    private static final int ROWS = 100000;
+    private static final long RUN_MILLIS = 500;
+
+    private static Table table(Database db, String name) {
+        Type[] types = {
+            Type.type(db, "string"),
+            Type.type(db, "integer"),
+            Type.type(db, "tag(odd,even)")
+        };
+        Table t = new Table(db, name, new String[] {"Key", "Num", "Parity"}, types);
+
+        for (int i = 0; i < ROWS; i++) {
+            new Record(t, new String[] {"k" + i, Integer.toString(i), i % 2 == 0 ? "even" : "odd"});
+        }
+
+        return t;
+    }
+
+    // Runs the given tasks on a thread each, rethrowing the first failure.
+    private static void run(List<Runnable> tasks) {
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+
+        for (final Runnable task : tasks) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            });
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                throw new Error("Interrupted waiting for threads.", ie);
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            throw new Error("Thread failed.", failures.get(0));
+        }
+    }
+
+    // Looks up random keys from the given number of threads for a while, and
+    // returns the lookups done per second.
+    private static long reads(final Table t, int threads) {
+        final AtomicInteger done = new AtomicInteger();
+        final long end = System.currentTimeMillis() + RUN_MILLIS;
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+
+        for (int n = 0; n < threads; n++) {
+            final int seed = n;
+
+            tasks.add(new Runnable() {
+                public void run() {
+                    int i = seed * 7919;
+                    int count = 0;
+
+                    while ((count & 1023) != 0 || System.currentTimeMillis() < end) {
+                        i = (i + 104729) % ROWS;
+
+                        if (!Integer.toString(i).equals(t.select("k" + i).field(1))) {
+                            throw new Error("Wrong record read.");
+                        }
+
+                        count++;
+                    }
+
+                    done.addAndGet(count);
+                }
+            });
+        }
+
+        run(tasks);
+        return done.get() * 1000L / RUN_MILLIS;
+    }
+
+    // Adds rows to a table from the given number of threads for a while, and
+    // returns the rows added per second. Each add waits until it is on disk.
+    private static long writes(final Table t, int threads) {
+        final AtomicInteger done = new AtomicInteger();
+        final long end = System.currentTimeMillis() + RUN_MILLIS;
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+
+        for (int n = 0; n < threads; n++) {
+            final String prefix = threads + "_" + n + "_";
+
+            tasks.add(new Runnable() {
+                public void run() {
+                    int count = 0;
+
+                    while (System.currentTimeMillis() < end) {
+                        new Record(t, new String[] {prefix + count, "value"});
+                        count++;
+                    }
+
+                    done.addAndGet(count);
+                }
+            });
+        }
+
+        run(tasks);
+        return done.get() * 1000L / RUN_MILLIS;
+    }
+
+    public static void main(String[] args) {
+        Database db = new Database();
+        final Table t = table(db, "stress_test");
+
+        // Readers share the table, so lookups should scale with the cores.
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; ; threads *= 2) {
+            threads = Math.min(threads, cores);
+            System.out.println(threads + " reader(s): " + reads(t, threads) + " reads/sec");
+
+            if (threads == cores) {
+                break;
+            }
+        }
+
+        // Writers add, change and delete their own rows, and change the numbers
+        // of the first rows, while readers check nothing is seen half written.
+        final int writers = 4;
+        final int perWriter = 2000;
+        final AtomicInteger winners = new AtomicInteger();
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+
+        for (int n = 0; n < writers; n++) {
+            final int w = n;
+
+            tasks.add(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < perWriter; i++) {
+                        Record r = new Record(t, new String[] {"w" + w + "_" + i, "0", "even"});
+                        r.field(1, Integer.toString(i));
+                        t.select("k" + (i % 100)).field(1, Integer.toString(-i));
+
+                        if (i % 2 == 1) {
+                            r.delete();
+                        }
+
+                        // Every writer tries to take the same key, and only one may.
+                        try {
+                            new Record(t, new String[] {"shared" + i, "1", "odd"});
+                            winners.incrementAndGet();
+                        } catch (Error e) {
+                            if (!"Key already in use.".equals(e.getMessage())) {
+                                throw e;
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        for (int n = 0; n < writers; n++) {
+            final int reader = n;
+
+            tasks.add(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < perWriter; i++) {
+                        String num = t.select("k" + (i % 100)).field(1);
+                        Long.parseLong(num);
+
+                        if (t.select(2, "odd").size() < ROWS / 2) {
+                            throw new Error("Rows missed while selecting.");
+                        }
+
+                        if (i % 200 == reader) {
+                            int seen = 0;
+                            Iterator<Record> it = t.scan();
+
+                            while (it.hasNext()) {
+                                it.next().field(2);
+                                seen++;
+                            }
+
+                            if (seen < ROWS) {
+                                throw new Error("Rows missed while scanning.");
+                            }
+
+                            t.aggregate(1);
+                        }
+                    }
+                }
+            });
+        }
+
+        run(tasks);
+
+        int expected = ROWS + writers * perWriter / 2 + perWriter;
+        if (winners.get() != perWriter || t.rows() != expected) {
+            throw new Error("Rows incorrect after concurrent writes.");
+        }
+
+        for (int n = 0; n < writers; n++) {
+            for (int i = 0; i < perWriter; i++) {
+                Record r = t.select("w" + n + "_" + i);
+
+                if ((i % 2 == 1) != (r == null) || (r != null && !Integer.toString(i).equals(r.field(1)))) {
+                    throw new Error("Record incorrect after concurrent writes.");
+                }
+            }
+        }
+
+        if (t.aggregate(1).count() != expected || t.select(2, "even").size() != ROWS / 2 + writers * perWriter / 2) {
+            throw new Error("Columns incorrect after concurrent writes.");
+        }
+
+        // Adds made at the same time share one write to disk, so more writers
+        // should add more rows a second.
+        Table logged = new Table(db, "stress_log", new String[] {"Key", "Value"});
+        logged.store();
+
+        try {
+            for (int threads = 1; threads <= 16; threads *= 2) {
+                System.out.println(threads + " writer(s): " + writes(logged, threads) + " durable adds/sec");
+            }
+
+            logged.close();
+            if (new Table(db, "stress_log").rows() != logged.rows()) {
+                throw new Error("Logged adds lost.");
+            }
+        } finally {
+            logged.close();
+            new File("stress_log.txt").delete();
+            new File("stress_log.log").delete();
+        }
+    }
+}
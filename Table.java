@@ -1,25 +1,80 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.DigestInputStream;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
 
 public class Table {
     private final String name;
     private final Record header;
     private final Type[] types;
+    // Each record knows its slot in this list. Deleted slots are left null
+    // until the list is compacted, so deletes don't shift the other rows.
     private final ArrayList<Record> records;
+    private int deleted;
+    // While any slots are deleted, the live records counted by slot as a
+    // Fenwick tree, so the record in a row is found in a few steps. Null
+    // once compacted.
+    private int[] counts;
+    // Maps each record key to its record, so key lookups don't scan the table.
+    private final HashMap<String, Record> keys;
+    // Records in other tables that refer to each key of this table through a
+    // ref() column. Keys that aren't referred to are left out.
+    private final HashMap<String, LinkedHashSet<Record>> referrers;
+    // Whether the tables that may refer to this one have all been loaded, so
+    // that referrers holds every reference.
+    private volatile boolean referrersLoaded;
+    // Compact stores for column values, indexed by slot. Null for columns
+    // whose values are kept in the records.
+    private final Column[] columns;
+    // Sorted indexes on columns, created on request. Null for unindexed columns.
+    private ColumnIndex[] indexes;
     private final Database parent;
+    // Changes since the table file was stored. Null until the table has a file.
+    private TableLog log;
+    // How the table is stored.
+    private FORMAT format;
+    // The table's rows, if they are kept in pages rather than as Records.
+    private PagedStore paged;
+    // Guards everything above that changes, so the table can be shared between
+    // threads. Readers share the read lock, so they only wait on writes. The
+    // lock isn't reentrant, so the thread holding the write lock is noted, and
+    // its reads go straight through.
+    private final StampedLock lock = new StampedLock();
+    private volatile Thread writer;
+    // The values rows had before changes made while snapshots were in use,
+    // newest first, by slot. Slots aren't renumbered while snapshots are in
+    // use, so each slot keeps its history. Dropped once no snapshot needs them.
+    private final HashMap<Integer, Version> versions;
+    // The slots that held each key before it was deleted or changed while
+    // snapshots were in use, so older versions can be found by key.
+    private final HashMap<String, ArrayList<Integer>> moved;
+    // The time of the transaction whose changes are being made, or 0.
+    private long committing;
+    // Set once the table is loaded. Changes made while loading, such as
+    // replaying the log, aren't kept as versions.
+    private boolean opened;
+
+    // The ways a table can be stored.
+    public enum FORMAT {
+        TEXT, BINARY, PAGED;
+    }
 
     private static final Type[] defaultTypes(Database db, int cols) {
         // Set type to default, String.
@@ -27,282 +82,1735 @@ public class Table {
         Type strType = Type.type(db, "string");
         Arrays.fill(types, strType);
 
-        return types;
+        return types;
+    }
+
+    public Table(Database db, String name, String[] columns) {
+        this(db, name, columns, defaultTypes(db, columns.length));
+    }
+
+    public Table(Database db, String name, String[] columns, Type[] types) {
+        records = new ArrayList<Record>();
+        keys = new HashMap<String, Record>();
+        referrers = new HashMap<String, LinkedHashSet<Record>>();
+        versions = new HashMap<Integer, Version>();
+        moved = new HashMap<String, ArrayList<Integer>>();
+        this.name = name;
+        header = new Record(this, columns);
+        this.types = types;
+        this.columns = columns(types);
+        format = FORMAT.TEXT;
+        parent = db;
+        opened = true;
+        parent.addTable(this);
+    }
+
+    public Table(Database db, String name) {
+        records = new ArrayList<Record>();
+        keys = new HashMap<String, Record>();
+        referrers = new HashMap<String, LinkedHashSet<Record>>();
+        versions = new HashMap<Integer, Version>();
+        moved = new HashMap<String, ArrayList<Integer>>();
+        this.name = name;
+
+        // Prefer the formats that are quicker to open.
+        if (new File(name + PagedStore.EXTENSION).exists()) {
+            format = FORMAT.PAGED;
+        } else if (new File(name + TableFile.EXTENSION).exists()) {
+            format = FORMAT.BINARY;
+        } else {
+            format = FORMAT.TEXT;
+        }
+
+        try {
+            if (format == FORMAT.PAGED) {
+                PagedStore store = new PagedStore(file(), PagedStore.POOL_PAGES, db);
+
+                try {
+                    header = new Record(this, store.names());
+                    types = types(db, store.types());
+                    columns = new Column[types.length];
+                    checkPaged();
+                } catch (Error e) {
+                    store.close();
+                    throw e;
+                }
+
+                paged = store;
+            } else if (format == FORMAT.BINARY) {
+                TableFile in = new TableFile(file());
+                header = new Record(this, in.names());
+                types = types(db, in.types());
+                columns = columns(types);
+                load(in.read(columns));
+            } else {
+                TableReader in = new TableReader(file());
+                String[] line = in.next();
+
+                if (line != null) {
+                    // First line gives the column names.
+                    header = new Record(this, line);
+                } else {
+                    throw new Error("Table file empty.");
+                }
+
+                line = in.next();
+                if (line != null && line.length == header.fields()) {
+                    // Second line gives the column types.
+                    types = types(db, line);
+                } else {
+                    throw new Error("Types not present for columns.");
+                }
+
+                columns = columns(types);
+
+                // Read every row before checking any, so checks can be done in bulk.
+                load(in.readAll(header.fields()));
+            }
+        } catch (IOException ioe) {
+            throw new Error("Could not read table file.", ioe);
+        }
+
+        parent = db;
+
+        // Apply changes made since the file was stored, before logging any more.
+        TableLog changes = new TableLog(name, file());
+        changes.replay(this);
+        log = changes;
+
+        opened = true;
+        parent.addTable(this);
+    }
+
+    private static Type[] types(Database db, String[] names) {
+        Type[] types = new Type[names.length];
+
+        for (int i = 0; i < names.length; i++) {
+            types[i] = Type.type(db, names[i]);
+        }
+
+        return types;
+    }
+
+    // Returns the file the table is stored in, in its current format.
+    private File file() {
+        return file(format);
+    }
+
+    private File file(FORMAT format) {
+        if (format == FORMAT.PAGED) {
+            return new File(name + PagedStore.EXTENSION);
+        } else if (format == FORMAT.BINARY) {
+            return new File(name + TableFile.EXTENSION);
+        } else {
+            return new File(name + ".txt");
+        }
+    }
+
+    // Removes the table's files in formats other than its own, left behind
+    // when the table is converted.
+    private void removeOldFiles() {
+        for (FORMAT other : FORMAT.values()) {
+            if (other != format) {
+                removeFile(file(other));
+            }
+        }
+
+        if (format != FORMAT.PAGED) {
+            removeFile(PagedStore.indexFile(file(FORMAT.PAGED)));
+            removeFile(PageFile.journalFile(file(FORMAT.PAGED)));
+        }
+    }
+
+    private static void removeFile(File file) {
+        if (file.exists() && !file.delete()) {
+            throw new Error("Failed to remove old table file.");
+        }
+    }
+
+    // Paged tables don't keep Records, so can't track references or index them.
+    private void checkPaged() {
+        for (Type type : types) {
+            if (type.ref() != null) {
+                throw new Error("Paged tables can't have ref() columns.");
+            }
+        }
+    }
+
+    // Returns a record holding a row read from the paged store. Records aren't
+    // kept for paged tables, so changes to it are made to the row with its key.
+    private Record copy(String[] values) {
+        return values == null ? null : new Record(this, values, -1);
+    }
+
+    private static String[] values(Record r) {
+        String[] values = new String[r.fields()];
+
+        for (int col = 0; col < values.length; col++) {
+            values[col] = r.field(col);
+        }
+
+        return values;
+    }
+
+    private static Column[] columns(Type[] types) {
+        Column[] columns = new Column[types.length];
+
+        for (int col = 0; col < types.length; col++) {
+            columns[col] = types[col].column();
+        }
+
+        return columns;
+    }
+
+    // Moves the record's values into the column stores where possible, once
+    // it has a slot. Values they can't hold are left in the record.
+    private void columnize(Record r) {
+        for (int col = 0; col < columns.length; col++) {
+            String value = r.stored(col);
+
+            if (columns[col] != null && value != null && columns[col].set(r.slot(), value)) {
+                r.stored(col, null);
+            }
+        }
+    }
+
+    // Returns a field of one of the table's records.
+    String field(Record r, int col) {
+        long stamp = readLock();
+        try {
+            return r.read(col);
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    // Returns the value held in a column store for the record at the given slot.
+    String value(int slot, int col) {
+        return columns[col].string(slot);
+    }
+
+    // Returns the store holding a column's values, or null if they are kept in
+    // the records.
+    Column column(int col) {
+        return columns[col];
+    }
+
+    // Returns the number of slots, including any left empty by deletes.
+    int slots() {
+        return records.size();
+    }
+
+    // Returns the record at the given slot, or null if it is empty.
+    Record record(int slot) {
+        return records.get(slot);
+    }
+
+    // Takes the read lock, for code reading the table's slots or columns
+    // directly. Returns 0 without locking if this thread holds the write lock.
+    long readLock() {
+        return writer == Thread.currentThread() ? 0 : lock.readLock();
+    }
+
+    void unlockRead(long stamp) {
+        if (stamp != 0) {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Takes the write lock, for a transaction changing several tables at once.
+    // Returns 0 without locking if this thread already holds it.
+    long writeLock() {
+        if (writer == Thread.currentThread()) {
+            return 0;
+        }
+
+        long stamp = lock.writeLock();
+        writer = Thread.currentThread();
+        return stamp;
+    }
+
+    // Releases the write lock, then waits until any changes logged are on
+    // disk. Waiting after releasing it lets other threads log their changes
+    // meanwhile, to be written to disk along with these.
+    void unlockWrite(long stamp) {
+        if (stamp != 0) {
+            sync(release(stamp));
+        }
+    }
+
+    // Releases the write lock without waiting for the changes logged, and
+    // returns how many entries to wait for with sync().
+    long release(long stamp) {
+        TableLog changes = log;
+        long count = changes == null ? 0 : changes.appended();
+
+        writer = null;
+        lock.unlockWrite(stamp);
+        return count;
+    }
+
+    // Waits until the given number of log entries are on disk.
+    void sync(long count) {
+        TableLog changes = log;
+
+        if (count > 0 && changes != null) {
+            changes.sync(count, parent.commitDelay());
+        }
+    }
+
+    boolean hasLog() {
+        return log != null;
+    }
+
+    TableLog log() {
+        return log;
+    }
+
+    // Marks the start of a transaction's changes in the log, if there is one.
+    // See TableLog.begin().
+    void logBegin(long shared) {
+        if (log != null) {
+            log.begin(shared);
+        }
+    }
+
+    // Marks the end of a transaction's changes in the log, if there is one.
+    void logEnd() {
+        if (log != null) {
+            log.end();
+        }
+    }
+
+    // Writes everything logged to disk now, under the write lock.
+    void flushLog() {
+        if (log != null) {
+            log.sync(log.appended(), 0);
+        }
+    }
+
+    boolean committed(long id) {
+        return parent.isCommitted(id);
+    }
+
+    // Checks and appends rows read from the table file. Does the same checks
+    // as inserting each row as a new Record, but a column or the key index at
+    // a time rather than with a lookup per row. A null value has already been
+    // put in the column's store, at the slot the row will be given.
+    private void load(ArrayList<String[]> rows) {
+        for (int col = 0; col < types.length; col++) {
+            Type type = types[col];
+
+            for (String[] row : rows) {
+                if (row[col] != null && !type.allowed(row[col])) {
+                    throw new Error("Field invalid for given type.");
+                }
+            }
+        }
+
+        records.ensureCapacity(records.size() + rows.size());
+        for (Column column : columns) {
+            if (column != null) {
+                column.ensure(records.size() + rows.size());
+            }
+        }
+
+        for (String[] row : rows) {
+            Record r = new Record(this, row, records.size());
+
+            if (keys.put(r.key(), r) != null) {
+                throw new Error("Key already in use.");
+            }
+
+            records.add(r);
+            counted(r.slot(), 1);
+            columnize(r);
+            index(r, true);
+            references(r, true);
+        }
+    }
+
+    public void store() {
+        long stamp = writeLock();
+
+        try {
+            storeLocked();
+        } finally {
+            unlockWrite(stamp);
+        }
+    }
+
+    private void storeLocked() {
+        if (paged != null) {
+            // Changes are made to the pages in place, so just write them out.
+            paged.flush();
+            resetLog();
+            return;
+        }
+
+        compact();
+
+        // Write to a new file first, so a failure can't leave half a table.
+        File outFile = file();
+        File tmpFile = new File(outFile.getPath() + ".tmp");
+
+        try {
+            if (format == FORMAT.BINARY) {
+                TableFile.write(tmpFile, this);
+            } else {
+                writeText(tmpFile);
+            }
+
+            Files.move(tmpFile.toPath(), outFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            throw new Error("Failed to write table file.", ioe);
+        }
+
+        removeOldFiles();
+        resetLog();
+    }
+
+    // Starts a new log, once the table's file holds every change.
+    private void resetLog() {
+        File outFile = file();
+
+        if (log == null || !log.base().equals(outFile)) {
+            if (log != null) {
+                log.close();
+            }
+            log = new TableLog(name, outFile);
+        }
+        log.reset();
+    }
+
+    private void writeText(File file) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        FieldCodec out = new FieldCodec(fos);
+
+        // Write the header.
+        for (int col = 0; col < header.fields(); col++) {
+            out.write(header.field(col), col == header.fields() - 1);
+        }
+
+        // Write the types.
+        for (int col = 0; col < types.length; col++) {
+            out.write(types[col].toString(), col == types.length - 1);
+        }
+
+        for (Record r : this.records) {
+            if (r == null) {
+                continue;
+            }
+
+            for (int col = 0; col < r.fields(); col++) {
+                out.write(r.field(col), col == r.fields() - 1);
+            }
+        }
+
+        out.flush();
+
+        // Make sure the table is on disk before it replaces the old one.
+        fos.getFD().sync();
+        fos.close();
+    }
+
+    // Stores the table in the given format, replacing its file in the old
+    // format. Converting from the paged format reads every row into memory.
+    // Records selected from a paged table before converting it are detached.
+    public void convert(FORMAT format) {
+        long stamp = writeLock();
+
+        try {
+            convertLocked(format);
+        } finally {
+            unlockWrite(stamp);
+        }
+    }
+
+    private void convertLocked(FORMAT format) {
+        if ((format == FORMAT.PAGED) != (paged != null) && parent.snapshots()) {
+            throw new Error("Can't change to or from paged while snapshots are in use.");
+        }
+
+        if (format == FORMAT.PAGED && paged == null) {
+            checkPaged();
+            compact();
+
+            // Write the pages to a new file first, so a failure can't leave half a table.
+            File outFile = file(FORMAT.PAGED);
+            File tmpFile = new File(outFile.getPath() + ".tmp");
+            String[] names = values(header);
+            String[] typeNames = new String[types.length];
+
+            for (int col = 0; col < types.length; col++) {
+                typeNames[col] = types[col].toString();
+            }
+
+            try {
+                PagedStore store = PagedStore.create(tmpFile, names, typeNames,
+                                                     PagedStore.POOL_PAGES, parent);
+                for (Record r : records) {
+                    store.insert(values(r));
+                }
+                store.close();
+
+                // The index is checked against the pages when opened, so if
+                // moving it fails it is just rebuilt.
+                Files.move(tmpFile.toPath(), outFile.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(PagedStore.indexFile(tmpFile).toPath(),
+                           PagedStore.indexFile(outFile).toPath(),
+                           StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                paged = new PagedStore(outFile, PagedStore.POOL_PAGES, parent);
+            } catch (IOException ioe) {
+                throw new Error("Failed to write table file.", ioe);
+            }
+
+            // Records already selected become copies of their rows.
+            for (Record r : records) {
+                for (int col = 0; col < r.fields(); col++) {
+                    r.stored(col, r.field(col));
+                }
+                r.slot(-1);
+            }
+
+            records.clear();
+            keys.clear();
+            indexes = null;
+            Arrays.fill(columns, null);
+
+            this.format = format;
+            removeOldFiles();
+            resetLog();
+        } else if (format != FORMAT.PAGED && paged != null) {
+            ArrayList<String[]> rows = new ArrayList<String[]>(paged.rows());
+            Iterator<String[]> it = paged.scan();
+
+            while (it.hasNext()) {
+                rows.add(it.next());
+            }
+
+            paged.close();
+            paged = null;
+
+            for (int col = 0; col < types.length; col++) {
+                columns[col] = types[col].column();
+            }
+
+            load(rows);
+            this.format = format;
+            storeLocked();
+        } else {
+            this.format = format;
+            storeLocked();
+        }
+    }
+
+    // Returns the format the table is stored in.
+    public FORMAT format() {
+        return format;
+    }
+
+    // Closes the table's log file. The table can still be used, and will
+    // reopen the log if changed.
+    public void close() {
+        long stamp = writeLock();
+
+        try {
+            // The page file is kept open, but everything in it is written
+            // out, so the log can be emptied.
+            if (paged != null) {
+                storeLocked();
+            }
+
+            if (log != null) {
+                log.close();
+            }
+        } finally {
+            unlockWrite(stamp);
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int rows() {
+        long stamp = readLock();
+        try {
+            return paged != null ? paged.rows() : records.size() - deleted;
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    public int columns() {
+        if (header == null) {
+            return 0;
+        } else {
+            return header.fields();
+        }
+    }
+
+    public String name(int col) {
+        if (checkColBounds(col)) {
+            return header.field(col);
+        } else {
+            throw new Error("Bad column.");
+        }
+    }
+
+    public int column(String name) {
+        for (int col = 0; col < header.fields(); col++) {
+            if (header.field(col).equalsIgnoreCase(name)) {
+                return col;
+            }
+        }
+
+        return -1;
+    }
+
+    public Type type(int col) {
+        if (checkColBounds(col)) {
+            return types[col];
+        } else {
+            throw new Error("Bad column.");
+        }
+    }
+
+    public Record select(int row) {
+        long stamp = readLock();
+        try {
+            return row(row);
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    // Returns the record in the given row, counting past any slots left by
+    // deletes.
+    private Record row(int row) {
+        if (paged != null) {
+            return copy(paged.row(row));
+        } else if (row < 0 || row >= records.size() - deleted) {
+            throw new Error("Bad row.");
+        } else if (deleted == 0) {
+            return records.get(row);
+        }
+
+        // Finds the last slot with no more than row records up to it, so the
+        // record is in the slot after.
+        int slot = 0;
+        for (int step = Integer.highestOneBit(counts.length); step > 0; step >>= 1) {
+            if (slot + step < counts.length && counts[slot + step] <= row) {
+                slot += step;
+                row -= counts[slot];
+            }
+        }
+
+        return records.get(slot);
+    }
+
+    // Returns the live records counted by slot as a Fenwick tree, in which
+    // slot i is counted at i + 1, with room for the table to grow.
+    private int[] counts() {
+        int[] tree = new int[Math.max(records.size() * 2, 16) + 1];
+
+        for (int i = 1; i < tree.length; i++) {
+            if (i <= records.size() && records.get(i - 1) != null) {
+                tree[i]++;
+            }
+
+            int parent = i + (i & -i);
+
+            if (parent < tree.length) {
+                tree[parent] += tree[i];
+            }
+        }
+
+        return tree;
+    }
+
+    // Notes a record added to or removed from a slot, if the records are
+    // being counted.
+    private void counted(int slot, int change) {
+        if (counts == null) {
+            return;
+        } else if (slot + 1 >= counts.length) {
+            counts = counts();
+            return;
+        }
+
+        for (int i = slot + 1; i < counts.length; i += i & -i) {
+            counts[i] += change;
+        }
+    }
+
+    public Record select(String key) {
+        long stamp = readLock();
+        try {
+            return selectKey(key);
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    private Record selectKey(String key) {
+        if (paged != null) {
+            return copy(paged.get(key));
+        }
+
+        return keys.get(key);
+    }
+
+    // Builds a sorted index on the given column, which is then kept up to date,
+    // so that selecting by value or range in the column doesn't scan the table.
+    public void createIndex(int col) {
+        long stamp = writeLock();
+
+        try {
+            createIndexLocked(col);
+        } finally {
+            unlockWrite(stamp);
+        }
+    }
+
+    private void createIndexLocked(int col) {
+        if (!checkColBounds(col)) {
+            throw new Error("Bad column.");
+        } else if (paged != null) {
+            throw new Error("Paged tables can't be indexed.");
+        }
+
+        if (indexes == null) {
+            indexes = new ColumnIndex[columns()];
+        }
+
+        if (indexes[col] == null) {
+            ColumnIndex index = new ColumnIndex(types[col]);
+
+            for (Record r : records) {
+                if (r != null) {
+                    index.add(r, r.field(col));
+                }
+            }
+
+            indexes[col] = index;
+        }
+    }
+
+    // Returns true if the column has an index. The key column of a paged table
+    // always has one.
+    public boolean indexed(int col) {
+        long stamp = readLock();
+
+        try {
+            return hasIndex(col);
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    private boolean hasIndex(int col) {
+        if (paged != null) {
+            return col == 0;
+        }
+
+        return indexes != null && checkColBounds(col) && indexes[col] != null;
+    }
+
+    // Returns the records whose field in the given column equals the value,
+    // compared as the column's type, so for an integer column "7" and "007" match.
+    public ArrayList<Record> select(int col, String value) {
+        long stamp = readLock();
+
+        try {
+            return selectValue(col, value);
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    private ArrayList<Record> selectValue(int col, String value) {
+        if (!checkColBounds(col)) {
+            throw new Error("Bad column.");
+        }
+
+        ArrayList<Record> ret = new ArrayList<Record>();
+
+        if (paged != null && col == 0) {
+            Iterator<Record> it = keyRange(value, value);
+
+            while (it.hasNext()) {
+                ret.add(it.next());
+            }
+        } else if (hasIndex(col)) {
+            ret = indexes[col].get(value);
+        } else if (col == 0 && !types[0].integer()) {
+            // Integer keys need a scan, as "7" should also find "007".
+            Record r = selectKey(value);
+            if (r != null) {
+                ret.add(r);
+            }
+        } else if (columns[col] instanceof TagColumn) {
+            // Compare codes rather than Strings.
+            TagColumn tags = (TagColumn)columns[col];
+            int code = types[col].code(value);
+
+            for (Record r : records) {
+                if (r != null) {
+                    String stored = r.stored(col);
+
+                    if (stored == null ? tags.code(r.slot()) == code : stored.equals(value)) {
+                        ret.add(r);
+                    }
+                }
+            }
+        } else {
+            Type type = types[col];
+            Iterator<Record> it = iterate();
+
+            while (it.hasNext()) {
+                Record r = it.next();
+
+                if (type.compare(r.field(col), value) == 0) {
+                    ret.add(r);
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    // Returns the records whose field in the given column is between lo and hi
+    // inclusive, in order of the field as the column's type. Either bound may be
+    // null to leave that end open.
+    public ArrayList<Record> select(int col, String lo, String hi) {
+        long stamp = readLock();
+
+        try {
+            return selectRange(col, lo, hi);
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    private ArrayList<Record> selectRange(int col, String lo, String hi) {
+        if (!checkColBounds(col)) {
+            throw new Error("Bad column.");
+        }
+
+        if (paged != null && col == 0) {
+            ArrayList<Record> ret = new ArrayList<Record>();
+            Iterator<Record> it = keyRange(lo, hi);
+
+            while (it.hasNext()) {
+                ret.add(it.next());
+            }
+
+            return ret;
+        } else if (hasIndex(col)) {
+            return indexes[col].range(lo, hi);
+        }
+
+        // Only the matches are sorted. The sort is stable, so records with
+        // equal fields stay in row order, as an index would keep them.
+        ArrayList<Record> found = scanRange(col, lo, hi);
+        final Type type = types[col];
+        final int c = col;
+
+        Collections.sort(found, new Comparator<Record>() {
+            public int compare(Record a, Record b) {
+                return type.compare(a.field(c), b.field(c));
+            }
+        });
+
+        return found;
+    }
+
+    // Returns the records whose field in the given column is between lo and
+    // hi inclusive, in row order, found by reading every row.
+    private ArrayList<Record> scanRange(int col, String lo, String hi) {
+        ArrayList<Record> ret = new ArrayList<Record>();
+        Type type = types[col];
+        Iterator<Record> it = iterate();
+
+        while (it.hasNext()) {
+            Record r = it.next();
+            String value = r.field(col);
+
+            if ((lo == null || type.compare(value, lo) >= 0)
+                && (hi == null || type.compare(value, hi) <= 0)) {
+                ret.add(r);
+            }
+        }
+
+        return ret;
+    }
+
+    // Returns the records with keys between lo and hi inclusive, in order of the
+    // key column's type. Either bound may be null to leave that end open.
+    // Paged tables read each record from the key index as it is reached.
+    public Iterator<Record> byKey(String lo, String hi) {
+        long stamp = readLock();
+
+        try {
+            return paged == null ? selectRange(0, lo, hi).iterator() : locked(keyRange(lo, hi));
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    private Iterator<Record> keyRange(String lo, String hi) {
+        if (paged == null) {
+            return selectRange(0, lo, hi).iterator();
+        }
+
+        return copies(paged.range(lo, hi));
+    }
+
+    // Returns the records with a field equal to a value, or between lo and hi
+    // inclusive, in row order rather than the order of the field, as a scan
+    // would find them. Paged tables can only be searched this way by key.
+    Iterator<Record> inRowOrder(int col, String lo, String hi, boolean equal) {
+        long stamp = readLock();
+
+        try {
+            if (paged != null && col == 0) {
+                return locked(copies(paged.inPageOrder(lo, hi)));
+            }
+
+            if (!equal && !hasIndex(col)) {
+                // Already in row order.
+                return scanRange(col, lo, hi).iterator();
+            }
+
+            ArrayList<Record> found = equal ? selectValue(col, lo) : selectRange(col, lo, hi);
+            Collections.sort(found, BY_SLOT);
+            return found.iterator();
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    private static final Comparator<Record> BY_SLOT = new Comparator<Record>() {
+        public int compare(Record a, Record b) {
+            return Integer.compare(a.slot(), b.slot());
+        }
+    };
+
+    // Returns records holding the rows read from a paged table.
+    private Iterator<Record> copies(final Iterator<String[]> rows) {
+        return new Iterator<Record>() {
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            public Record next() {
+                return copy(rows.next());
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Returns the count, sum, minimum, maximum and average of a column.
+    public Aggregate aggregate(int col) {
+        return Aggregate.of(this, col);
+    }
+
+    // Returns the aggregates of a column for each value of another column.
+    public Map<String, Aggregate> aggregate(int col, int groupCol) {
+        return Aggregate.of(this, col, groupCol);
+    }
+
+    // Compares a record's field with a value as the column's type. Tags held
+    // in a column store are compared by code, without looking up the String.
+    int compare(Record r, int col, String value) {
+        long stamp = readLock();
+        try {
+            return compareField(r, col, value);
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    private int compareField(Record r, int col, String value) {
+        if (columns[col] instanceof TagColumn && r.stored(col) == null && r.slot() >= 0) {
+            int code = types[col].code(value);
+
+            if (code >= 0) {
+                return ((TagColumn)columns[col]).code(r.slot()) - code;
+            }
+        }
+
+        return types[col].compare(r.field(col), value);
+    }
+
+    // Returns the records in row order, reading the table as it goes rather
+    // than copying the list of records. Each step is taken under the read
+    // lock, so changes made while iterating may or may not be seen.
+    Iterator<Record> scan() {
+        long stamp = readLock();
+
+        try {
+            return locked(iterate());
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    // Wraps an iterator over the table so that each step takes the read lock.
+    private Iterator<Record> locked(final Iterator<Record> it) {
+        return new Iterator<Record>() {
+            public boolean hasNext() {
+                long stamp = readLock();
+
+                try {
+                    return it.hasNext();
+                } finally {
+                    unlockRead(stamp);
+                }
+            }
+
+            public Record next() {
+                long stamp = readLock();
+
+                try {
+                    return it.next();
+                } finally {
+                    unlockRead(stamp);
+                }
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Returns the records in row order, for use under the lock.
+    private Iterator<Record> iterate() {
+        if (paged != null) {
+            return copies(paged.scan());
+        }
+
+        return new Iterator<Record>() {
+            private int slot = 0;
+
+            public boolean hasNext() {
+                while (slot < records.size() && records.get(slot) == null) {
+                    slot++;
+                }
+
+                return slot < records.size();
+            }
+
+            public Record next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                return records.get(slot++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Adds a record to, or removes it from, any indexes on its columns.
+    private void index(Record r, boolean add) {
+        if (indexes != null) {
+            for (int col = 0; col < indexes.length; col++) {
+                if (indexes[col] != null) {
+                    if (add) {
+                        indexes[col].add(r, r.field(col));
+                    } else {
+                        indexes[col].remove(r, r.field(col));
+                    }
+                }
+            }
+        }
+    }
+
+    protected void insert(Record r) {
+        long stamp = writeLock();
+
+        try {
+            insertLocked(r);
+        } finally {
+            unlockWrite(stamp);
+        }
+    }
+
+    private void insertLocked(Record r) {
+        // Do nothing if there's no header
+        if (header == null) {
+            return;
+        } else if (paged != null) {
+            if (paged.contains(r.key())) {
+                throw new Error("Inserting duplicate record.");
+            } else if (!checkRecord(r)) {
+                throw new Error("Field invalid for given type.");
+            }
+
+            paged.insert(values(r));
+
+            if (log != null) {
+                log.insert(r);
+                logged();
+            }
+        } else if (find(r) < 0) {
+            // Checked again here, as another thread may have taken the key
+            // since the record checked it.
+            if (keys.containsKey(r.key())) {
+                throw new Error("Key already in use.");
+            } else if (checkRecord(r)) {
+                append(r);
+
+                if (log != null) {
+                    logged();
+                }
+            } else {
+                throw new Error("Field invalid for given type.");
+            }
+        } else {
+            throw new Error("Inserting duplicate record.");
+        }
+    }
+
+    // Adds a checked record with an unused key after the other rows.
+    private void append(Record r) {
+        r.slot(records.size());
+        version(r.slot(), null, null);
+        records.add(r);
+        counted(r.slot(), 1);
+        keys.put(r.key(), r);
+        columnize(r);
+        index(r, true);
+        references(r, true);
+
+        if (log != null) {
+            log.insert(r);
+        }
+    }
+
+    // The number of rows insertAll() checks and adds at a time.
+    private static final int INSERT_CHUNK = 4096;
+
+    // Adds many rows, returning those that couldn't be added rather than
+    // stopping at them. Rows are taken from the iterator a chunk at a time,
+    // outside the lock, so it may read them from a file as it goes. Each chunk
+    // is type checked a column at a time, as when loading, then added under
+    // one write lock, so logged rows reach the disk together. Short rows are
+    // filled with blanks.
+    public ArrayList<Reject> insertAll(Iterator<String[]> rows) {
+        if (header == null) {
+            throw new Error("Table has no columns.");
+        }
+
+        ArrayList<Reject> rejects = new ArrayList<Reject>();
+        ArrayList<String[]> chunk = new ArrayList<String[]>(INSERT_CHUNK);
+        ArrayList<Integer> numbers = new ArrayList<Integer>(INSERT_CHUNK);
+        int number = 0;
+
+        while (rows.hasNext()) {
+            chunk.clear();
+            numbers.clear();
+
+            while (chunk.size() < INSERT_CHUNK && rows.hasNext()) {
+                String[] values = rows.next();
+                String reason = checkRow(values);
+
+                if (reason == null) {
+                    String[] row = Arrays.copyOf(values, types.length);
+                    Arrays.fill(row, values.length, row.length, "");
+                    chunk.add(row);
+                    numbers.add(number);
+                } else {
+                    rejects.add(new Reject(number, values, reason));
+                }
+
+                number++;
+            }
+
+            insertChunk(chunk, numbers, rejects);
+        }
+
+        // Rows found bad before and after taking the lock are mixed up.
+        Collections.sort(rejects, new Comparator<Reject>() {
+            public int compare(Reject a, Reject b) {
+                return Integer.compare(a.row, b.row);
+            }
+        });
+
+        return rejects;
+    }
+
+    // Returns why a row can't be added whatever else is in the table, or null.
+    private String checkRow(String[] values) {
+        if (values == null || values.length == 0) {
+            return "Attempted to store a null value.";
+        } else if (values.length > types.length) {
+            return "Record length exceeds table size.";
+        }
+
+        for (String value : values) {
+            if (value == null) {
+                return "Attempted to store a null value.";
+            }
+        }
+
+        return null;
+    }
+
+    private void insertChunk(ArrayList<String[]> chunk, ArrayList<Integer> numbers, ArrayList<Reject> rejects) {
+        // Mark rows that don't fit a column's type, a column at a time. Rows
+        // referred to are looked for under the lock, below, as they could be
+        // deleted before it is taken.
+        String[] reasons = new String[chunk.size()];
+
+        for (int col = 0; col < types.length; col++) {
+            Type type = types[col];
+
+            if (type.ref() != null) {
+                continue;
+            }
+
+            for (int i = 0; i < chunk.size(); i++) {
+                if (reasons[i] == null) {
+                    try {
+                        if (!type.allowed(chunk.get(i)[col])) {
+                            reasons[i] = "Value not of type " + type.toString();
+                        }
+                    } catch (Error e) {
+                        reasons[i] = e.getMessage();
+                    }
+                }
+            }
+        }
+
+        long stamp = writeLock();
+
+        try {
+            if (paged == null) {
+                records.ensureCapacity(records.size() + chunk.size());
+            }
+
+            for (int i = 0; i < chunk.size(); i++) {
+                String[] row = chunk.get(i);
+
+                if (reasons[i] == null && (paged != null ? paged.contains(row[0]) : keys.containsKey(row[0]))) {
+                    reasons[i] = "Key already in use.";
+                }
+
+                for (int col = 0; col < types.length && reasons[i] == null; col++) {
+                    if (types[col].ref() != null && !types[col].allowed(row[col])) {
+                        reasons[i] = "Value not of type " + types[col].toString();
+                    }
+                }
+
+                if (reasons[i] != null) {
+                    rejects.add(new Reject(numbers.get(i), row, reasons[i]));
+                } else if (paged != null) {
+                    paged.insert(row);
+
+                    if (log != null) {
+                        log.insert(copy(row));
+                    }
+                } else {
+                    append(new Record(this, row, -1));
+                }
+            }
+
+            if (log != null) {
+                logged();
+            }
+        } finally {
+            unlockWrite(stamp);
+        }
     }
 
-    public Table(Database db, String name, String[] columns) {
-        this(db, name, columns, defaultTypes(db, columns.length));
+    // A row insertAll() couldn't add, with its place among the rows given
+    // counting from 0, and why.
+    public static class Reject {
+        public final int row;
+        public final String[] values;
+        public final String reason;
+
+        public Reject(int row, String[] values, String reason) {
+            this.row = row;
+            this.values = values;
+            this.reason = reason;
+        }
     }
 
-    public Table(Database db, String name, String[] columns, Type[] types) {
-        records = new ArrayList<Record>();
-        this.name = name;
-        header = new Record(this, columns);
-        this.types = types;
-        parent = db;
-        parent.addTable(this);
+    // Returns true if all the fields in the given record fit with the type.
+    private boolean checkRecord(Record r) {
+        for (int i = 0; i < r.fields(); i++) {
+            if (!types[i].allowed(r.field(i))) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
-    public Table(Database db, String name) {
-        records = new ArrayList<Record>();
-        this.name = name;
+    protected void delete(Record r) {
+        loadReferrers();
+        long stamp = writeLock();
 
         try {
-            File inFile = new File(name + ".txt");
-            BufferedReader in = new BufferedReader(new FileReader(inFile));
-            String[] line = readNext(in);
+            deleteLocked(r);
+        } finally {
+            unlockWrite(stamp);
+        }
+    }
 
-            if (line != null) {
-                // First line gives the column names.
-                header = new Record(this, line);
-            } else {
-                throw new Error("Table file empty.");
+    private void deleteLocked(Record r) {
+        if (paged != null) {
+            String key = r.key();
+
+            if (!paged.contains(key)) {
+                throw new Error("Deleting non-existant record.");
+            } else if (referenced(key)) {
+                throw new Error("Record is still referenced.");
             }
 
-            line = readNext(in);
-            if (line != null && line.length == header.fields()) {
-                // Second line gives the column types.
-                types = new Type[header.fields()];
-                for (int i = 0; i < line.length; i++) {
-                    Type t = Type.type(db, line[i]);
-                    types[i] = t;
-                }
+            paged.delete(key);
+
+            if (log != null) {
+                log.delete(key);
+                logged();
+            }
+            return;
+        }
+
+        int row = find(r);
+
+        if (row >= 0) {
+            String key = r.key();
+            if (referenced(key)) {
+                throw new Error("Record is still referenced.");
+            }
+
+            version(row, values(r), key);
+            index(r, false);
+            references(r, false);
+
+            records.set(row, null);
+            r.slot(-1);
+            deleted++;
+
+            if (counts == null) {
+                counts = counts();
             } else {
-                throw new Error("Types not present for columns.");
+                counted(row, -1);
             }
+            keys.remove(key);
 
-            for (line = readNext(in); line != null; line = readNext(in)) {
-                if (line.length == header.fields()) {
-                    new Record(this, line);
-                } else {
-                    throw new Error("Table file invalid.");
-                }
+            if (log != null) {
+                log.delete(key);
+                logged();
             }
-        } catch (IOException ioe) {
-            throw new Error("Could not read table file.", ioe);
-        }
 
-        parent = db;
-        parent.addTable(this);
+            // Don't let deleted slots outnumber the live ones.
+            if (deleted > records.size() / 2) {
+                compact();
+            }
+        } else {
+            throw new Error("Deleting non-existant record.");
+        }
     }
 
-    // Reads the next record from the given BufferedReader as an array of Strings.
-    // Returns null if there are no more lines.
-    private static String[] readNext(BufferedReader in) throws IOException {
-        ArrayList<String> ret = new ArrayList<String>();
-        StringBuilder sb = new StringBuilder();
-        int read = in.read();
-        boolean isEscaped = false;
-        char c;
+    // Sets a field of a record, checking the value first. Both are done under
+    // the write lock, so the checks still hold when the field is set.
+    void set(Record r, int col, String value) {
+        if (col == 0) {
+            loadReferrers();
+        }
+
+        long stamp = writeLock();
 
-        while (read >= 0) {
-            c = (char)read;
+        try {
+            if (col == 0 && selectKey(value) != null) {
+                throw new Error("Key already in use.");
+            }
 
-            if (c == '\r') {
-                // Skip it
-                read = in.read();
-                c = (char)read;
+            if (col == 0 && contains(r) && referenced(r.key())) {
+                throw new Error("Key is still referenced.");
             }
 
-            if (isEscaped) {
-                if (c == ',' || c == '\\' || c == '\n') {
-                    // Met a valid escape sequence, append.
-                    sb.append(c);
-                } else {
-                    // Found an invalid escape sequence (e.g. \a).
-                    throw new Error("Table file invalid.");
-                }
+            Type type = type(col);
 
-                isEscaped = false;
-            } else if (c == '\\') {
-                // Met an escape character, ignore and set state.
-                isEscaped = true;
-            } else if (c == ',') {
-                // Met a field delimiter, add to the list.
-                ret.add(sb.toString());
-
-                // Reset the StringBuilder.
-                sb = new StringBuilder();
-            } else if (c == '\n') {
-                // Met a record delimiter, add & return the array.
-                ret.add(sb.toString());
-                return ret.toArray(new String[ret.size()]);
-            } else {
-                // Found a regular character, append.
-                sb.append(c);
+            if (!type.allowed(value)) {
+                throw new Error("Value not of type " + type.toString());
             }
 
-            read = in.read();
-        }
+            if (paged == null && find(r) >= 0) {
+                version(r.slot(), values(r), col == 0 ? r.key() : null);
+            }
 
-        // Return null if we get to EOF without a newline.
-        return null;
+            String old = r.read(col);
+            r.stored(col, value);
+
+            changed(r, col, old);
+        } finally {
+            unlockWrite(stamp);
+        }
     }
 
-    public void store() {
-        try {
-            BufferedWriter out = new BufferedWriter(new FileWriter(this.name + ".txt"));
-
-            // Write the header.
-            String s;
-            for (int col = 0; col < header.fields() - 1; col++) {
-                s = header.field(col);
-                out.write(escapeChars(s));
-                out.write(',');
-            }
-            s = header.field(header.fields() - 1);
-            out.write(escapeChars(s));
-            out.write('\n');
-
-            // Write the types.
-            for (int i = 0; i < types.length - 1; i++) {
-                s = types[i].toString();
-                out.write(escapeChars(s));
-                out.write(',');
-            }
-            s = types[types.length - 1].toString();
-            out.write(escapeChars(s));
-            out.write('\n');
-
-            for (Record r : this.records) {
-                for (int f = 0; f < r.fields() - 1; f++) {
-                    s = r.field(f);
-                    out.write(escapeChars(s));
-                    out.write(',');
+    // Called after one of a record's fields has changed, to keep the key
+    // index current and log the change.
+    private void changed(Record r, int col, String old) {
+        if (paged != null) {
+            String key = col == 0 ? old : r.key();
+
+            if (key != null && r != header && paged.contains(key)) {
+                // Change just this column, in case the row has changed since
+                // the record was read.
+                String[] values = paged.get(key);
+                values[col] = r.field(col);
+                paged.update(key, values);
+
+                if (log != null) {
+                    log.update(key, col, r.field(col));
+                    logged();
                 }
-                s = r.field(r.fields() - 1);
-                out.write(escapeChars(s));
-                out.write('\n');
             }
 
-            out.close();
-        } catch (IOException ioe) {
-            throw new Error("Failed to write table file.", ioe);
+            return;
         }
-    }
 
-    private static String escapeChars(String field) {
-        String ret = field;
+        if (find(r) < 0) {
+            // Not in the table yet, or the header.
+            return;
+        }
+
+        if (columns[col] != null && columns[col].set(r.slot(), r.stored(col))) {
+            r.stored(col, null);
+        }
 
-        // Replace all single \ with double \\.
-        ret = ret.replace("\\", "\\\\");
+        if (col == 0) {
+            keys.remove(old);
+            keys.put(r.key(), r);
+        }
 
-        // Precede all newlines and commas with a \.
-        ret = ret.replace("\n", "\\\n");
-        ret = ret.replace(",", "\\,");
+        if (hasIndex(col)) {
+            indexes[col].remove(r, old);
+            indexes[col].add(r, r.field(col));
+        }
 
-        return ret;
+        Table ref = types[col].ref();
+        if (ref != null) {
+            ref.reference(old, r, false);
+            ref.reference(r.field(col), r, true);
+        }
+
+        if (log != null) {
+            log.update(col == 0 ? old : r.key(), col, r.field(col));
+            logged();
+        }
     }
 
-    public String name() {
-        return name;
+    // Records, or stops recording, that each key the record refers to through
+    // a ref() column is referred to by it.
+    private void references(Record r, boolean add) {
+        for (int col = 0; col < types.length; col++) {
+            Table ref = types[col].ref();
+
+            if (ref != null) {
+                ref.reference(r.field(col), r, add);
+            }
+        }
     }
 
-    public int rows() {
-        return records.size();
+    // Records, or stops recording, that the given key is referred to by a
+    // record in another table. Tables referring to this one may be loading
+    // at the same time, so this is synchronized.
+    synchronized void reference(String key, Record r, boolean add) {
+        if (key.isEmpty()) {
+            return;
+        }
+
+        LinkedHashSet<Record> found = referrers.get(key);
+
+        if (add) {
+            if (found == null) {
+                found = new LinkedHashSet<Record>();
+                referrers.put(key, found);
+            }
+
+            found.add(r);
+        } else if (found != null) {
+            found.remove(r);
+
+            if (found.isEmpty()) {
+                referrers.remove(key);
+            }
+        }
     }
 
-    public int columns() {
-        if (header == null) {
-            return 0;
-        } else {
-            return header.fields();
+    // Loads any tables that refer to this one, the first time a record may
+    // lose its key, as only tables already loaded have noted their references.
+    // Done before taking the write lock, as loading them reads this table.
+    void loadReferrers() {
+        if (!referrersLoaded) {
+            parent.loadReferrers(name());
+            referrersLoaded = true;
         }
     }
 
-    public String name(int col) {
-        if (checkColBounds(col)) {
-            return header.field(col);
-        } else {
-            throw new Error("Bad column.");
+    // Returns the records in other tables that refer to the given key.
+    synchronized Record[] referrers(String key) {
+        LinkedHashSet<Record> found = referrers.get(key);
+        return found == null ? new Record[0] : found.toArray(new Record[found.size()]);
+    }
+
+    // Returns true if a record in another table refers to the given key, in
+    // which case the record with the key can't be deleted or have its key changed.
+    public synchronized boolean referenced(String key) {
+        return referrers.containsKey(key);
+    }
+
+    // Stores the table if enough changes have been logged since it was last
+    // stored. A transaction calls this under the write lock once its changes
+    // are all made.
+    void logged() {
+        // Not part way through a transaction, which would store only some of it.
+        if (committing == 0 && log != null && log.full(rows())) {
+            storeLocked();
         }
     }
 
-    public int column(String name) {
-        for (int col = 0; col < header.fields(); col++) {
-            if (header.field(col).equalsIgnoreCase(name)) {
-                return col;
-            }
+    // Returns true if the record is one of the table's rows, rather than the
+    // header or a record not yet inserted or already deleted.
+    private boolean contains(Record r) {
+        if (paged != null) {
+            return r != header && paged.contains(r.key());
         }
 
-        return -1;
+        return find(r) >= 0;
     }
 
-    public Type type(int col) {
-        if (checkColBounds(col)) {
-            return types[col];
-        } else {
-            throw new Error("Bad column.");
+    private int find(Record r) {
+        int slot = r.slot();
+
+        if (slot >= 0 && slot < records.size() && records.get(slot) == r) {
+            return slot;
         }
+
+        return -1;
     }
 
-    public Record select(int row) {
-        if (checkRowBounds(row)) {
-            return records.get(row);
-        } else {
-            throw new Error("Bad row.");
+    // Removes the slots left behind by deleted records, renumbering the rest.
+    // Snapshots find old rows by slot, so nothing moves while any are in use.
+    private void compact() {
+        if (deleted == 0 || parent.snapshots()) {
+            return;
         }
-    }
 
-    public Record select(String key) {
-        for (int i = 0; i < records.size(); i++) {
-            Record r = records.get(i);
-            if (r.key().equals(key)) {
-                return r;
+        versions.clear();
+        moved.clear();
+
+        int live = 0;
+        for (int slot = 0; slot < records.size(); slot++) {
+            Record r = records.get(slot);
+
+            if (r != null) {
+                for (Column column : columns) {
+                    if (column != null) {
+                        column.move(slot, live);
+                    }
+                }
+
+                r.slot(live);
+                records.set(live, r);
+                live++;
             }
         }
 
-        return null;
+        records.subList(live, records.size()).clear();
+        deleted = 0;
+        counts = null;
     }
 
-    protected void insert(Record r) {
-        // Do nothing if there's no header
-        if (header == null) {
+    // Keeps the values the row in the given slot had before a change, with the
+    // key it loses if any, while snapshots taken before the change may need
+    // them. Null values mean the slot was empty. Once no snapshot is in use,
+    // the versions kept are dropped.
+    private void version(int slot, String[] values, String key) {
+        if (!opened) {
             return;
-        } else if (find(r) < 0) {
-            if (checkRecord(r)) {
-                records.add(r);
-            } else {
-                throw new Error("Field invalid for given type.");
+        }
+
+        long time = committing != 0 ? committing : parent.change();
+
+        if (time == 0) {
+            versions.clear();
+            moved.clear();
+            return;
+        }
+
+        versions.put(slot, new Version(time, values, versions.get(slot)));
+
+        if (key != null) {
+            ArrayList<Integer> slots = moved.get(key);
+
+            if (slots == null) {
+                slots = new ArrayList<Integer>();
+                moved.put(key, slots);
             }
-        } else {
-            throw new Error("Inserting duplicate record.");
+
+            slots.add(slot);
         }
     }
 
-    // Returns true if all the fields in the given record fit with the type.
-    private boolean checkRecord(Record r) {
-        for (int i = 0; i < r.fields(); i++) {
-            if (!types[i].allowed(r.field(i))) {
-                return false;
-            }
+    // Returns the values the row in the given slot had at the given time, or
+    // null if the slot was empty.
+    private String[] visible(int slot, long time) {
+        Version v = versions.get(slot);
+
+        if (v == null || time >= v.until) {
+            Record r = slot < records.size() ? records.get(slot) : null;
+            return r == null ? null : values(r);
         }
 
-        return true;
+        while (v.older != null && time < v.older.until) {
+            v = v.older;
+        }
+
+        return v.values == null ? null : Arrays.copyOf(v.values, v.values.length);
     }
 
-    protected void delete(Record r) {
-        int row = find(r);
+    // Returns the values of the row with the given key as they were at the
+    // given time, or null if there was no such row. A time of Long.MAX_VALUE
+    // gives the current values. Paged tables keep no versions, so always give
+    // the current values.
+    String[] select(String key, long time) {
+        long stamp = readLock();
 
-        if (row >= 0) {
-            records.remove(row);
-        } else {
-            throw new Error("Deleting non-existant record.");
+        try {
+            if (paged != null) {
+                return paged.get(key);
+            }
+
+            // The key's row now, or one of the rows that held it before.
+            Record r = keys.get(key);
+            if (r != null) {
+                String[] values = visible(r.slot(), time);
+
+                if (values != null && values[0].equals(key)) {
+                    return values;
+                }
+            }
+
+            ArrayList<Integer> slots = moved.get(key);
+            if (slots != null) {
+                for (int slot : slots) {
+                    String[] values = visible(slot, time);
+
+                    if (values != null && values[0].equals(key)) {
+                        return values;
+                    }
+                }
+            }
+
+            return null;
+        } finally {
+            unlockRead(stamp);
         }
     }
 
-    private int find(Record r) {
-        for (int row = 0; row < records.size(); row++) {
-            if (records.get(row) == r) {
-                return row;
+    // Returns the current rows in row order, for a caller that holds the read
+    // lock until done with them, so no change is seen part way through.
+    Iterator<String[]> held() {
+        final Iterator<Record> it = iterate();
+
+        return new Iterator<String[]>() {
+            public boolean hasNext() {
+                return it.hasNext();
             }
-        }
 
-        return -1;
+            public String[] next() {
+                return values(it.next());
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Returns the rows as they were at the given time, in slot order, or the
+    // current rows of a paged table. Each step takes the read lock, so a long
+    // scan doesn't hold up changes.
+    Iterator<String[]> scan(final long time) {
+        final Iterator<Record> current = format() == FORMAT.PAGED ? scan() : null;
+
+        return new Iterator<String[]>() {
+            private int slot = 0;
+            private String[] next;
+
+            public boolean hasNext() {
+                if (current != null) {
+                    return current.hasNext();
+                }
+
+                long stamp = readLock();
+
+                try {
+                    while (next == null && slot < records.size()) {
+                        next = visible(slot++, time);
+                    }
+                } finally {
+                    unlockRead(stamp);
+                }
+
+                return next != null;
+            }
+
+            public String[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                } else if (current != null) {
+                    return values(current.next());
+                }
+
+                String[] ret = next;
+                next = null;
+                return ret;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Sets the time given to the changes being made by a transaction, while
+    // it holds the write lock, or 0 when it is done.
+    void committing(long time) {
+        committing = time;
     }
 
-    private boolean checkRowBounds(int row) {
-        return row >= 0 && row < records.size();
+    // The values a row had before the change made at a time, and the version
+    // before that.
+    private static class Version {
+        private final long until;
+        private final String[] values;
+        private final Version older;
+
+        public Version(long until, String[] values, Version older) {
+            this.until = until;
+            this.values = values;
+            this.older = older;
+        }
     }
 
     private boolean checkColBounds(int col) {
@@ -310,7 +1818,35 @@ public class Table {
     }
 
     public void print(PrintStream out) {
-        int[] widths = getColWidths();
+        long stamp = writeLock();
+
+        try {
+            compact();
+        } finally {
+            unlockWrite(stamp);
+        }
+
+        // The rows are copied first, so a client slow to take the output
+        // can't hold up writers.
+        ArrayList<String[]> rows = new ArrayList<String[]>();
+        stamp = readLock();
+        try {
+            Iterator<Record> it = iterate();
+
+            while (it.hasNext()) {
+                rows.add(values(it.next()));
+            }
+        } finally {
+            unlockRead(stamp);
+        }
+
+        print(out, rows);
+    }
+
+    // Prints the given rows under the table's header. The rows are read twice,
+    // first to find the column widths.
+    void print(PrintStream out, Iterable<String[]> rows) {
+        int[] widths = getColWidths(rows);
 
         for (int col = 0; col < widths.length - 1; col++) {
             String val = header.field(col);
@@ -327,12 +1863,12 @@ public class Table {
         printMult(out, '-', widths[widths.length - 1] - 1);
         out.println();
 
-        for (Record r : records) {
+        for (String[] row : rows) {
             for (int col = 0; col < widths.length - 1; col++) {
-                padPrint(out, r.field(col), col, widths[col]);
+                padPrint(out, row[col], col, widths[col]);
             }
             int col = widths.length - 1;
-            padPrint(out, r.field(col), col, widths[col]);
+            padPrint(out, row[col], col, widths[col]);
         }
     }
 
@@ -361,26 +1897,20 @@ public class Table {
         }
     }
 
-    private int[] getColWidths() {
+    private int[] getColWidths(Iterable<String[]> rows) {
         int[] widths = new int[header.fields()];
 
         for (int col = 0; checkColBounds(col); col++) {
-            widths[col] = getColWidth(col);
+            widths[col] = header.field(col).length();
         }
 
-        return widths;
-    }
-
-    private int getColWidth(int col) {
-        int width = header.field(col).length();
-
-        for (Record r : records) {
-            if (r.field(col).length() > width) {
-                width = r.field(col).length();
+        for (String[] row : rows) {
+            for (int col = 0; col < widths.length; col++) {
+                widths[col] = Math.max(widths[col], row[col].length());
             }
         }
 
-        return width;
+        return widths;
     }
 
     public static void main(String[] args) {
@@ -400,6 +1930,35 @@ public class Table {
             throw new Error("Key incorrect");
         }
 
+        new Record(t, new String[] {"x", "y", "z"}).delete();
+        t.select("a").delete();
+        if (t.rows() != 2 || !"1".equals(t.select(1).key())) {
+            throw new Error("Rows incorrect after delete.");
+        }
+        new Record(t, new String[] {"a", "b", "c"});
+
+        // Rows are found past deleted slots without compacting, as the table
+        // grows and shrinks.
+        Table rowTest = new Table(db, "row_test", new String[] {"Key"});
+        ArrayList<String> order = new ArrayList<String>();
+        for (int i = 0; i < 400; i++) {
+            new Record(rowTest, new String[] {"r" + i});
+            order.add("r" + i);
+
+            if (i % 3 == 2) {
+                rowTest.select("r" + (i - 1)).delete();
+                order.remove("r" + (i - 1));
+            }
+        }
+        for (int i = 0; i < order.size(); i++) {
+            if (!order.get(i).equals(rowTest.select(i).key())) {
+                throw new Error("Rows incorrect after deletes.");
+            }
+        }
+        if (rowTest.records.size() != 400) {
+            throw new Error("Rows compacted when selected.");
+        }
+
         // Store in a file.
         t.store();
 
@@ -442,5 +2001,86 @@ public class Table {
         } catch (NoSuchAlgorithmException nsa) {
             throw new Error("Print test algorithm doesn't exist.");
         }
+
+        // Integer columns hold any allowed value, not just plain numbers.
+        Type[] types = {Type.type(db, "string"), Type.type(db, "integer")};
+        t = new Table(db, "int_test", new String[] {"Key", "Number"}, types);
+        Record r = new Record(t, new String[] {"a", "12"});
+        new Record(t, new String[] {"b", "12"});
+        new Record(t, new String[] {"c", "-3"});
+        if (t.select(1, "12").size() != 2 || t.select(1, "-5", "012").size() != 3) {
+            throw new Error("Select by column incorrect.");
+        }
+
+        // Without an index, matches are sorted by value, keeping row order
+        // among equal values.
+        ArrayList<Record> sorted = t.select(1, "-5", "012");
+        if (!"c".equals(sorted.get(0).key()) || sorted.get(1) != r || !"b".equals(sorted.get(2).key())) {
+            throw new Error("Select by range ordered incorrectly.");
+        }
+
+        t.createIndex(1);
+        t.select("b").field(1, "100");
+        t.select("c").delete();
+        ArrayList<Record> found = t.select(1, "0", null);
+        if (found.size() != 2 || found.get(0) != r || !t.select(1, "-3").isEmpty()) {
+            throw new Error("Index not kept up to date.");
+        }
+        for (String val : new String[] {"007", "", "-5", "123456789012345678901234567890"}) {
+            r.field(1, val);
+
+            if (!val.equals(r.field(1))) {
+                throw new Error("Integer field stored incorrectly.");
+            }
+        }
+
+        types = new Type[] {Type.type(db, "string"), Type.type(db, "tag(on,off)")};
+        t = new Table(db, "tag_test", new String[] {"Key", "State"}, types);
+        new Record(t, new String[] {"a", "on"});
+        new Record(t, new String[] {"b", "off"});
+        new Record(t, new String[] {"c", "on"});
+        t.select("c").field(1, "off");
+        if (t.select(1, "off").size() != 2 || !"on".equals(t.select("a").field(1))) {
+            throw new Error("Tag field stored incorrectly.");
+        }
+
+        // A referenced record can't be deleted or rekeyed until nothing refers to it.
+        Table people = new Table(db, "ref_people", new String[] {"Key", "Name"});
+        new Record(people, new String[] {"p1", "Ann"});
+        new Record(people, new String[] {"p2", "Bob"});
+        types = new Type[] {Type.type(db, "string"), Type.type(db, "ref(ref_people)")};
+        Table pets = new Table(db, "ref_pets", new String[] {"Key", "Owner"}, types);
+        new Record(pets, new String[] {"cat", "p2"});
+        new Record(pets, new String[] {"dog", "p1"});
+        new Record(pets, new String[] {"fish", ""});
+
+        boolean fail = true;
+        try {
+            people.select("p2").delete();
+        } catch (Error e) {
+            fail = false;
+        }
+        if (fail || !people.referenced("p2")) {
+            throw new Error("Deleted a referenced record.");
+        }
+
+        fail = true;
+        try {
+            people.select("p1").field(0, "p4");
+        } catch (Error e) {
+            fail = false;
+        }
+        if (fail || people.select("p1") == null) {
+            throw new Error("Rekeyed a referenced record.");
+        }
+
+        pets.select("cat").field(1, "p1");
+        people.select("p2").delete();
+        pets.select("dog").delete();
+        pets.select("cat").delete();
+        people.select("p1").field(0, "p3");
+        if (people.referenced("p1") || people.referenced("p3")) {
+            throw new Error("References not removed.");
+        }
     }
 }
@@ -0,0 +1,541 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// Reads and writes tables in a binary format, which opens without parsing each
+// row as the text format must. Each column is stored as a block of its own,
+// read with a few bulk reads:
+//
+//     strings:  the UTF-8 bytes of every value, then the offset of the end of
+//               each value within them.
+//     integers: a bitmap of the blank values, then every value as a long.
+//     tags:     the code of every value, in one or two bytes.
+//
+// Integer and tag blocks end with a list of rows whose values the column store
+// can't hold, such as "007", given as Strings. The blocks are followed by a
+// footer giving the column names and types, the number of rows, and the
+// offset, length and CRC32 checksum of each block, then the footer's own
+// checksum and length so it can be found from the end of the file.
+public class TableFile {
+    public static final String EXTENSION = ".tbl";
+
+    private static final int MAGIC = 0x44425442;
+    private static final int VERSION = 1;
+    private static final byte STRINGS = 0;
+    private static final byte INTS = 1;
+    private static final byte TAGS = 2;
+    // The footer's checksum, length and the magic number at the end of the file.
+    private static final int TRAILER = 16;
+
+    private final File file;
+    private final String[] names;
+    private final String[] types;
+    private final int rows;
+    private final byte[] kinds;
+    private final long[] offsets;
+    private final long[] lengths;
+    private final long[] crcs;
+
+    // Opens a table file, reading only its footer.
+    public TableFile(File file) throws IOException {
+        this.file = file;
+
+        FileInputStream in = new FileInputStream(file);
+
+        try {
+            FileChannel ch = in.getChannel();
+            long size = ch.size();
+
+            if (size < 4 + TRAILER) {
+                throw new Error("Table file corrupt.");
+            }
+
+            ByteBuffer trailer = read(ch, size - TRAILER, TRAILER);
+            long crc = trailer.getLong();
+            int len = trailer.getInt();
+
+            if (trailer.getInt() != MAGIC || len < 0 || len > size - 4 - TRAILER) {
+                throw new Error("Table file corrupt.");
+            }
+
+            ByteBuffer footer = read(ch, size - TRAILER - len, len);
+            check(footer, crc);
+
+            if (footer.getInt() != VERSION) {
+                throw new Error("Table file version not supported.");
+            }
+
+            int cols = footer.getInt();
+            names = new String[cols];
+            types = new String[cols];
+            for (int col = 0; col < cols; col++) {
+                names[col] = readString(footer);
+                types[col] = readString(footer);
+            }
+
+            rows = footer.getInt();
+            kinds = new byte[cols];
+            offsets = new long[cols];
+            lengths = new long[cols];
+            crcs = new long[cols];
+            for (int col = 0; col < cols; col++) {
+                kinds[col] = footer.get();
+                offsets[col] = footer.getLong();
+                lengths[col] = footer.getLong();
+                crcs[col] = footer.getLong();
+
+                if (offsets[col] < 4 || lengths[col] < 0 || lengths[col] > Integer.MAX_VALUE
+                    || offsets[col] + lengths[col] > size - TRAILER - len) {
+                    throw new Error("Table file corrupt.");
+                }
+            }
+        } catch (RuntimeException re) {
+            // Buffer underflows and the like from a footer that doesn't add up.
+            throw new Error("Table file corrupt.", re);
+        } finally {
+            in.close();
+        }
+    }
+
+    public String[] names() {
+        return names.clone();
+    }
+
+    public String[] types() {
+        return types.clone();
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    // Reads every row. Values the given column stores can hold are put
+    // straight into them, at the row's slot, and left null in the row.
+    public ArrayList<String[]> read(Column[] columns) throws IOException {
+        if (columns.length != names.length) {
+            throw new Error("Table file corrupt.");
+        }
+
+        String[][] values = new String[rows][names.length];
+        FileInputStream in = new FileInputStream(file);
+
+        try {
+            FileChannel ch = in.getChannel();
+
+            for (int col = 0; col < names.length; col++) {
+                MappedByteBuffer block = ch.map(FileChannel.MapMode.READ_ONLY,
+                                                offsets[col], lengths[col]);
+                check(block, crcs[col]);
+
+                if (kinds[col] == STRINGS && columns[col] == null) {
+                    readStrings(block, values, col);
+                } else if (kinds[col] == INTS && columns[col] instanceof IntColumn) {
+                    readInts(block, (IntColumn)columns[col], values, col);
+                } else if (kinds[col] == TAGS && columns[col] instanceof TagColumn) {
+                    readTags(block, (TagColumn)columns[col], values, col);
+                } else {
+                    throw new Error("Table file corrupt.");
+                }
+            }
+        } catch (RuntimeException re) {
+            throw new Error("Table file corrupt.", re);
+        } finally {
+            in.close();
+        }
+
+        ArrayList<String[]> ret = new ArrayList<String[]>(rows);
+        for (String[] row : values) {
+            ret.add(row);
+        }
+
+        return ret;
+    }
+
+    private void readStrings(ByteBuffer block, String[][] values, int col) {
+        int size = block.remaining() - 4 * rows;
+        if (size < 0) {
+            throw new Error("Table file corrupt.");
+        }
+
+        byte[] bytes = new byte[size];
+        int[] ends = new int[rows];
+        block.get(bytes);
+        block.asIntBuffer().get(ends);
+
+        int start = 0;
+        for (int row = 0; row < rows; row++) {
+            if (ends[row] < start || ends[row] > size) {
+                throw new Error("Table file corrupt.");
+            }
+
+            values[row][col] = new String(bytes, start, ends[row] - start, StandardCharsets.UTF_8);
+            start = ends[row];
+        }
+    }
+
+    private void readInts(ByteBuffer block, IntColumn column, String[][] values, int col) {
+        long[] blanks = new long[(rows + 63) >>> 6];
+        long[] ints = new long[rows];
+
+        block.asLongBuffer().get(blanks);
+        block.position(block.position() + 8 * blanks.length);
+        block.asLongBuffer().get(ints);
+        block.position(block.position() + 8 * ints.length);
+
+        column.load(ints, blanks);
+        readExceptions(block, values, col);
+    }
+
+    private void readTags(ByteBuffer block, TagColumn column, String[][] values, int col) {
+        int width = block.get();
+        column.ensure(rows);
+
+        for (int row = 0; row < rows; row++) {
+            int code = width == 1 ? block.get() & 0xff : block.getChar();
+
+            if (!column.code(row, code)) {
+                throw new Error("Table file corrupt.");
+            }
+        }
+
+        readExceptions(block, values, col);
+    }
+
+    // Reads the rows whose values are given as Strings rather than in the
+    // column store. Every other row's value is left null.
+    private void readExceptions(ByteBuffer block, String[][] values, int col) {
+        int count = block.getInt();
+
+        for (int i = 0; i < count; i++) {
+            int row = block.getInt();
+
+            if (row < 0 || row >= rows) {
+                throw new Error("Table file corrupt.");
+            }
+
+            values[row][col] = readString(block);
+        }
+    }
+
+    // Writes a table to the given file in the binary format.
+    public static void write(File file, Table t) throws IOException {
+        int cols = t.columns();
+        int rows = t.rows();
+        byte[] kinds = new byte[cols];
+        long[] offsets = new long[cols];
+        long[] lengths = new long[cols];
+        long[] crcs = new long[cols];
+
+        FileOutputStream fos = new FileOutputStream(file);
+
+        try {
+            BufferedOutputStream buffered = new BufferedOutputStream(fos, 1 << 16);
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(buffered);
+            out.writeInt(MAGIC);
+            out.flush();
+            long pos = 4;
+
+            for (int col = 0; col < cols; col++) {
+                crc.reset();
+                DataOutputStream block = new DataOutputStream(
+                    new CheckedOutputStream(buffered, crc));
+                Column column = t.column(col);
+
+                if (column instanceof IntColumn) {
+                    kinds[col] = INTS;
+                    writeInts(block, t, (IntColumn)column, col, rows);
+                } else if (column instanceof TagColumn) {
+                    kinds[col] = TAGS;
+                    writeTags(block, t, (TagColumn)column, col, rows);
+                } else {
+                    kinds[col] = STRINGS;
+                    writeStrings(block, t, col, rows);
+                }
+
+                block.flush();
+                if (block.size() == Integer.MAX_VALUE) {
+                    // The count stops here, so the block may be larger.
+                    throw new Error("Column too large for table file.");
+                }
+
+                offsets[col] = pos;
+                lengths[col] = block.size();
+                crcs[col] = crc.getValue();
+                pos += block.size();
+            }
+
+            crc.reset();
+            DataOutputStream footer = new DataOutputStream(new CheckedOutputStream(buffered, crc));
+            footer.writeInt(VERSION);
+            footer.writeInt(cols);
+            for (int col = 0; col < cols; col++) {
+                writeString(footer, t.name(col));
+                writeString(footer, t.type(col).toString());
+            }
+            footer.writeInt(rows);
+            for (int col = 0; col < cols; col++) {
+                footer.writeByte(kinds[col]);
+                footer.writeLong(offsets[col]);
+                footer.writeLong(lengths[col]);
+                footer.writeLong(crcs[col]);
+            }
+            footer.flush();
+
+            out.writeLong(crc.getValue());
+            out.writeInt(footer.size());
+            out.writeInt(MAGIC);
+            out.flush();
+
+            // Make sure the table is on disk before it replaces the old one.
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, Table t, int col, int rows)
+        throws IOException {
+        int[] ends = new int[rows];
+        int row = 0;
+
+        for (int slot = 0; slot < t.slots(); slot++) {
+            Record r = t.record(slot);
+
+            if (r != null) {
+                out.write(r.field(col).getBytes(StandardCharsets.UTF_8));
+                ends[row++] = out.size();
+            }
+        }
+
+        for (int end : ends) {
+            out.writeInt(end);
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, Table t, IntColumn column, int col, int rows)
+        throws IOException {
+        long[] blanks = new long[(rows + 63) >>> 6];
+        long[] ints = new long[rows];
+        ArrayList<Integer> exceptions = new ArrayList<Integer>();
+        ArrayList<String> strings = new ArrayList<String>();
+        int row = 0;
+
+        for (int slot = 0; slot < t.slots(); slot++) {
+            Record r = t.record(slot);
+
+            if (r == null) {
+                continue;
+            } else if (r.stored(col) != null) {
+                exceptions.add(row);
+                strings.add(r.stored(col));
+            } else if (column.blank(slot)) {
+                blanks[row >>> 6] |= 1L << row;
+            } else {
+                ints[row] = column.get(slot);
+            }
+
+            row++;
+        }
+
+        for (long bits : blanks) {
+            out.writeLong(bits);
+        }
+        for (long value : ints) {
+            out.writeLong(value);
+        }
+
+        writeExceptions(out, exceptions, strings);
+    }
+
+    private static void writeTags(DataOutputStream out, Table t, TagColumn column, int col, int rows)
+        throws IOException {
+        boolean small = t.type(col).codes() <= 0xff;
+        ArrayList<Integer> exceptions = new ArrayList<Integer>();
+        ArrayList<String> strings = new ArrayList<String>();
+        int row = 0;
+
+        out.writeByte(small ? 1 : 2);
+
+        for (int slot = 0; slot < t.slots(); slot++) {
+            Record r = t.record(slot);
+
+            if (r == null) {
+                continue;
+            }
+
+            int code = 0;
+            if (r.stored(col) != null) {
+                exceptions.add(row);
+                strings.add(r.stored(col));
+            } else {
+                code = column.code(slot);
+            }
+
+            if (small) {
+                out.writeByte(code);
+            } else {
+                out.writeChar(code);
+            }
+
+            row++;
+        }
+
+        writeExceptions(out, exceptions, strings);
+    }
+
+    private static void writeExceptions(DataOutputStream out, ArrayList<Integer> rows,
+                                        ArrayList<String> strings) throws IOException {
+        out.writeInt(rows.size());
+
+        for (int i = 0; i < rows.size(); i++) {
+            out.writeInt(rows.get(i));
+            writeString(out, strings.get(i));
+        }
+    }
+
+    // Strings are written as a byte count then UTF-8, as in the table log.
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int len = in.getInt();
+        if (len < 0 || len > in.remaining()) {
+            throw new Error("Table file corrupt.");
+        }
+
+        byte[] bytes = new byte[len];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer read(FileChannel ch, long pos, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(len);
+
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, pos + buf.position()) < 0) {
+                throw new Error("Table file corrupt.");
+            }
+        }
+
+        buf.flip();
+        return buf;
+    }
+
+    // Checks the remaining bytes of a buffer against a checksum, leaving its
+    // position where it was.
+    private static void check(ByteBuffer buf, long expected) {
+        CRC32 crc = new CRC32();
+        int pos = buf.position();
+
+        crc.update(buf);
+        buf.position(pos);
+
+        if (crc.getValue() != expected) {
+            throw new Error("Table file checksum mismatch.");
+        }
+    }
+
+    public static void main(String[] args) {
+        Database db = new Database();
+        Type[] types = {
+            Type.type(db, "string"),
+            Type.type(db, "integer"),
+            Type.type(db, "tag(red,green)"),
+            Type.type(db, "string")
+        };
+        Table t = new Table(db, "file_test", new String[] {"Key", "Num", "Colour", "Note"}, types);
+
+        for (int i = 0; i < 200; i++) {
+            new Record(t, new String[] {"k" + i, Integer.toString(i - 100),
+                                        i % 2 == 0 ? "red" : "", "n\u00e9,\n" + i});
+        }
+        new Record(t, new String[] {"padded", "007", "green", ""});
+        new Record(t, new String[] {"blank", "", "green", "x"});
+        t.select("k3").delete();
+
+        File f = new File("file_test" + EXTENSION);
+
+        try {
+            write(f, t);
+            TableFile in = new TableFile(f);
+
+            if (in.rows() != 201 || !"Colour".equals(in.names()[2])
+                || !"tag(red,green)".equals(in.types()[2])) {
+                throw new Error("Table file footer incorrect.");
+            }
+
+            Column[] columns = {null, new IntColumn(), new TagColumn(types[2]), null};
+            ArrayList<String[]> rows = in.read(columns);
+
+            String[] row = rows.get(3);
+            if (!"k4".equals(row[0]) || row[1] != null || !"-96".equals(columns[1].string(3))
+                || !"red".equals(columns[2].string(3)) || !"n\u00e9,\n4".equals(row[3])) {
+                throw new Error("Table file read incorrectly.");
+            }
+            if (!"007".equals(rows.get(199)[1]) || !"".equals(columns[1].string(200))
+                || !"".equals(columns[2].string(1))) {
+                throw new Error("Table file values read incorrectly.");
+            }
+
+            // A damaged block should be noticed.
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            raf.seek(10);
+            int b = raf.read();
+            raf.seek(10);
+            raf.write(b ^ 1);
+            raf.close();
+
+            boolean fail = true;
+            try {
+                new TableFile(f).read(new Column[] {null, new IntColumn(), new TagColumn(types[2]), null});
+            } catch (Error e) {
+                fail = false;
+            }
+            if (fail) {
+                throw new Error("Damaged table file read.");
+            }
+
+            // Converting should replace the text file, and changes after should
+            // be logged against the binary one.
+            t.store();
+            t.convert(Table.FORMAT.BINARY);
+            t.select("k4").field(3, "changed");
+            t.close();
+
+            t = new Table(db, "file_test");
+            if (t.format() != Table.FORMAT.BINARY || new File("file_test.txt").exists() || t.rows() != 201
+                || !"changed".equals(t.select("k4").field(3))
+                || !"007".equals(t.select("padded").field(1))) {
+                throw new Error("Table not converted to binary.");
+            }
+
+            t.convert(Table.FORMAT.TEXT);
+            t = new Table(db, "file_test");
+            if (t.format() != Table.FORMAT.TEXT || f.exists() || !"-96".equals(t.select("k4").field(1))) {
+                throw new Error("Table not converted to text.");
+            }
+        } catch (IOException ioe) {
+            throw new Error("Table file testing failed.", ioe);
+        } finally {
+            t.close();
+            f.delete();
+            new File("file_test.txt").delete();
+            new File("file_test.log").delete();
+        }
+    }
+}
@@ -0,0 +1,662 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+// An append-only log of the changes made to a table since its file was last
+// stored, so that each change costs a small append rather than rewriting the
+// whole table file. The log is replayed when the table is next loaded, and
+// emptied whenever the table is stored.
+//
+// The log starts with the length and modification time of the table file it
+// applies to, so a log left behind after the table file was replaced is ignored.
+// Each entry is its length, the entry itself, then a CRC32 checksum of it.
+//
+// Entries are appended to memory, and written to disk by sync(). Threads that
+// sync at the same time share one write and one force to disk: the first to
+// arrive writes every entry appended so far, and the rest wait for it.
+//
+// The entries a transaction makes are put between a begin and an end entry,
+// and replayed only if the end is reached, so a crash part way through
+// writing them replays none. A transaction changing several logged tables
+// is only replayed if the database also recorded it as committed.
+public class TableLog {
+    private static final int MAGIC = 0x44424c47;
+    private static final byte INSERT = 1;
+    private static final byte UPDATE = 2;
+    private static final byte DELETE = 3;
+    private static final byte BEGIN = 4;
+    private static final byte END = 5;
+
+    // The table is stored once the log has this many entries, or as many
+    // entries as the table has rows if that is more.
+    private static final int COMPACT_MIN = 10000;
+
+    private final File file;
+    private final File base;
+    private FileOutputStream out;
+    private FileChannel channel;
+    private int entries;
+    // Entries appended but not yet written, with the file header first if the
+    // file is new.
+    private ByteArrayOutputStream pending;
+    // The number of entries appended since the log was created, and how many
+    // of those are known to be on disk.
+    private long appended;
+    private long synced;
+    // Set while a thread is writing a group of entries.
+    private boolean syncing;
+    // Set if a failed write couldn't be taken back off the end of the file, so
+    // entries written after it would be lost on replay. Cleared by reset().
+    private volatile boolean failed;
+
+    // Reused to build each entry before it is written.
+    private final ByteArrayOutputStream entry;
+    private final DataOutputStream entryOut;
+    private final CRC32 crc;
+
+    public TableLog(String name) {
+        this(name, new File(name + ".txt"));
+    }
+
+    // Creates the log for a table stored in the given file.
+    public TableLog(String name, File base) {
+        file = new File(name + ".log");
+        this.base = base;
+        entry = new ByteArrayOutputStream();
+        entryOut = new DataOutputStream(entry);
+        crc = new CRC32();
+        pending = new ByteArrayOutputStream();
+    }
+
+    // Returns the table file the log applies to.
+    public File base() {
+        return base;
+    }
+
+    public int entries() {
+        return entries;
+    }
+
+    // Returns true if the log has grown enough that the table should be stored.
+    public boolean full(int rows) {
+        return entries >= Math.max(COMPACT_MIN, rows);
+    }
+
+    // Applies any changes in the log to the table, which must not log them
+    // again. An incomplete or corrupt entry at the end of the log, as left by a
+    // crash part way through a write, is discarded along with anything after it.
+    public void replay(Table t) {
+        if (!file.exists()) {
+            return;
+        }
+
+        long valid = 0;
+        // The entries of the transaction being read, applied once it ends.
+        ArrayList<byte[]> group = null;
+        long shared = 0;
+        long groupStart = 0;
+
+        try {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+
+            try {
+                if (in.readInt() != MAGIC || in.readLong() != base.length()
+                    || in.readLong() != base.lastModified()) {
+                    // Written against a different table file.
+                    in.close();
+                    reset();
+                    return;
+                }
+
+                valid = 20;
+
+                while (true) {
+                    // A length running past the end of the file is as torn as
+                    // one cut short, and mustn't be allocated.
+                    int len = in.readInt();
+                    if (len <= 0 || len > file.length() - valid - 12) {
+                        break;
+                    }
+
+                    byte[] data = new byte[len];
+                    in.readFully(data);
+                    crc.reset();
+                    crc.update(data, 0, len);
+
+                    if (in.readLong() != crc.getValue()) {
+                        break;
+                    }
+
+                    DataInputStream entryIn = new DataInputStream(new ByteArrayInputStream(data));
+                    byte op = entryIn.readByte();
+
+                    if (op == BEGIN) {
+                        group = new ArrayList<byte[]>();
+                        shared = entryIn.readBoolean() ? entryIn.readLong() : 0;
+                        groupStart = valid;
+                    } else if (op == END) {
+                        if (group == null || (shared != 0 && !t.committed(shared))) {
+                            // Some of the transaction's tables never got it.
+                            break;
+                        }
+
+                        for (byte[] groupData : group) {
+                            apply(t, new DataInputStream(new ByteArrayInputStream(groupData)));
+                        }
+
+                        entries += group.size();
+                        group = null;
+                    } else if (group != null) {
+                        group.add(data);
+                    } else {
+                        apply(t, new DataInputStream(new ByteArrayInputStream(data)));
+                        entries++;
+                    }
+
+                    valid += 12 + len;
+                }
+            } catch (EOFException eof) {
+                // Reached the end, possibly part way through an entry.
+            } finally {
+                in.close();
+            }
+
+            // Drop anything after the last complete entry, or the start of a
+            // transaction that wasn't completed.
+            if (group != null) {
+                valid = groupStart;
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(valid);
+            raf.close();
+        } catch (IOException ioe) {
+            throw new Error("Could not read table log.", ioe);
+        }
+    }
+
+    private void apply(Table t, DataInputStream in) throws IOException {
+        byte op = in.readByte();
+
+        if (op == INSERT) {
+            String[] values = new String[in.readInt()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readString(in);
+            }
+            new Record(t, values);
+        } else if (op == UPDATE) {
+            Record r = t.select(readString(in));
+            int col = in.readInt();
+            String value = readString(in);
+
+            if (r == null) {
+                throw new Error("Table log invalid.");
+            }
+            r.field(col, value);
+        } else if (op == DELETE) {
+            Record r = t.select(readString(in));
+
+            if (r == null) {
+                throw new Error("Table log invalid.");
+            }
+            r.delete();
+        } else {
+            throw new Error("Table log invalid.");
+        }
+    }
+
+    public void insert(Record r) {
+        entry.reset();
+
+        try {
+            entryOut.writeByte(INSERT);
+            entryOut.writeInt(r.fields());
+            for (int i = 0; i < r.fields(); i++) {
+                writeString(entryOut, r.field(i));
+            }
+            append();
+        } catch (IOException ioe) {
+            throw new Error("Failed to write table log.", ioe);
+        }
+    }
+
+    public void update(String key, int col, String value) {
+        entry.reset();
+
+        try {
+            entryOut.writeByte(UPDATE);
+            writeString(entryOut, key);
+            entryOut.writeInt(col);
+            writeString(entryOut, value);
+            append();
+        } catch (IOException ioe) {
+            throw new Error("Failed to write table log.", ioe);
+        }
+    }
+
+    // Starts the entries of a transaction. A transaction changing several
+    // logged tables gives the id the database records it under once all their
+    // logs are on disk, otherwise 0.
+    public void begin(long shared) {
+        entry.reset();
+
+        try {
+            entryOut.writeByte(BEGIN);
+            entryOut.writeBoolean(shared != 0);
+            if (shared != 0) {
+                entryOut.writeLong(shared);
+            }
+            append();
+        } catch (IOException ioe) {
+            throw new Error("Failed to write table log.", ioe);
+        }
+    }
+
+    // Ends the entries of a transaction.
+    public void end() {
+        entry.reset();
+
+        try {
+            entryOut.writeByte(END);
+            append();
+        } catch (IOException ioe) {
+            throw new Error("Failed to write table log.", ioe);
+        }
+    }
+
+    public void delete(String key) {
+        entry.reset();
+
+        try {
+            entryOut.writeByte(DELETE);
+            writeString(entryOut, key);
+            append();
+        } catch (IOException ioe) {
+            throw new Error("Failed to write table log.", ioe);
+        }
+    }
+
+    // Adds the entry that has been built up to those waiting to be written.
+    private synchronized void append() throws IOException {
+        if (failed) {
+            throw new Error("Table log can't be written until the table is stored.");
+        }
+
+        DataOutputStream data = new DataOutputStream(pending);
+
+        if (out == null) {
+            boolean fresh = file.length() == 0;
+            out = new FileOutputStream(file, true);
+            channel = out.getChannel();
+
+            if (fresh) {
+                data.writeInt(MAGIC);
+                data.writeLong(base.length());
+                data.writeLong(base.lastModified());
+            }
+        }
+
+        crc.reset();
+        crc.update(entry.toByteArray(), 0, entry.size());
+
+        data.writeInt(entry.size());
+        entry.writeTo(data);
+        data.writeLong(crc.getValue());
+
+        appended++;
+        entries++;
+    }
+
+    // Returns the number of entries appended since the log was created.
+    public synchronized long appended() {
+        return appended;
+    }
+
+    // Waits until the first count entries appended are on disk. If no other
+    // thread is writing, this one writes every entry appended so far, after
+    // waiting up to delay nanoseconds for more to be appended, then forces
+    // them to disk. Otherwise it waits for that thread, and goes again if its
+    // entries weren't in the group.
+    public void sync(long count, long delay) {
+        byte[] group;
+        long upTo;
+
+        synchronized (this) {
+            try {
+                while (synced < count && syncing) {
+                    wait();
+                }
+
+                if (synced >= count) {
+                    return;
+                }
+
+                syncing = true;
+
+                if (delay > 0) {
+                    wait(delay / 1000000, (int)(delay % 1000000));
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new Error("Interrupted waiting for table log.");
+            }
+
+            group = pending.toByteArray();
+            pending.reset();
+            upTo = appended;
+        }
+
+        boolean written = false;
+        try {
+            write(group);
+            written = true;
+        } finally {
+            synchronized (this) {
+                if (written) {
+                    synced = upTo;
+                } else {
+                    // Put the group back, to be tried again by the next sync.
+                    ByteArrayOutputStream retry = new ByteArrayOutputStream();
+                    retry.write(group, 0, group.length);
+                    retry.write(pending.toByteArray(), 0, pending.size());
+                    pending = retry;
+                }
+
+                syncing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private void write(byte[] group) {
+        if (failed) {
+            throw new Error("Table log can't be written until the table is stored.");
+        }
+
+        long start = -1;
+
+        try {
+            start = channel.size();
+            ByteBuffer buf = ByteBuffer.wrap(group);
+
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+
+            channel.force(false);
+        } catch (IOException ioe) {
+            undo(start);
+            throw new Error("Failed to write table log.", ioe);
+        }
+    }
+
+    // Cuts the file back to its length before a failed write. Part of the
+    // group may have reached the file, and replay stops at the first bad
+    // entry, so anything written after it would be lost. If the file can't be
+    // cut back, nothing more is written.
+    private void undo(long start) {
+        try {
+            if (start >= 0) {
+                channel.truncate(start);
+                channel.force(false);
+                return;
+            }
+        } catch (IOException ioe) {
+            // Falls through to refuse further writes.
+        }
+
+        failed = true;
+    }
+
+    // Empties the log. Called once the table file holds all the changes, so
+    // entries not yet written are dropped rather than written.
+    public void reset() {
+        close(false);
+
+        if (file.exists() && !file.delete()) {
+            throw new Error("Failed to clear table log.");
+        }
+
+        entries = 0;
+        failed = false;
+    }
+
+    // Writes any entries not yet written, and closes the file.
+    public void close() {
+        close(true);
+    }
+
+    private synchronized void close(boolean write) {
+        try {
+            while (syncing) {
+                wait();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new Error("Interrupted waiting for table log.");
+        }
+
+        if (out != null) {
+            try {
+                if (write) {
+                    write(pending.toByteArray());
+                }
+
+                out.close();
+            } catch (IOException ioe) {
+                throw new Error("Failed to write table log.", ioe);
+            }
+
+            out = null;
+            channel = null;
+        }
+
+        pending.reset();
+        synced = appended;
+        notifyAll();
+    }
+
+    // Strings are written as a byte count then UTF-8, as writeUTF is limited to 64KB.
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    public static void main(String[] args) {
+        String[] cols = {
+            "Key",
+            "Value"
+        };
+
+        Database db = new Database();
+        Table t = new Table(db, "log_test", cols);
+        Table other = null;
+        new Record(t, new String[] {"a", "1"});
+        new Record(t, new String[] {"b", "2"});
+        t.store();
+
+        try {
+            // Changes after storing should only go to the log.
+            new Record(t, new String[] {"c", "3"});
+            t.select("a").field(1, "one,\n\\");
+            t.select("b").field(0, "bee");
+            t.select("c").delete();
+            t.close();
+
+            t = new Table(db, "log_test");
+
+            if (t.rows() != 2 || t.select("c") != null || t.select("b") != null) {
+                throw new Error("Log not replayed.");
+            }
+            if (!"one,\n\\".equals(t.select("a").field(1))
+                || !"2".equals(t.select("bee").field(1))) {
+                throw new Error("Log replayed incorrectly.");
+            }
+
+            // A torn write at the end of the log should be ignored.
+            t.select("a").field(1, "uno");
+            t.close();
+
+            File log = new File("log_test.log");
+            RandomAccessFile raf = new RandomAccessFile(log, "rw");
+            raf.setLength(raf.length() - 3);
+            raf.close();
+
+            t = new Table(db, "log_test");
+            if (!"one,\n\\".equals(t.select("a").field(1))) {
+                throw new Error("Torn log entry replayed.");
+            }
+            t.close();
+
+            // So should a garbage length, without allocating it.
+            long kept = log.length();
+            raf = new RandomAccessFile(log, "rw");
+            raf.seek(kept);
+            raf.writeInt(Integer.MAX_VALUE - 8);
+            raf.write(new byte[] {1, 2, 3});
+            raf.close();
+
+            t = new Table(db, "log_test");
+            if (!"one,\n\\".equals(t.select("a").field(1)) || log.length() != kept) {
+                throw new Error("Garbage log length not dropped.");
+            }
+
+            t.store();
+            if (log.exists()) {
+                throw new Error("Log not cleared by store.");
+            }
+
+            // A transaction cut off before its end entry is replayed not at all.
+            Transaction tx = db.begin();
+            tx.update(t, "a", 1, "x");
+            tx.update(t, "bee", 1, "y");
+            tx.commit();
+            t.close();
+
+            raf = new RandomAccessFile(log, "rw");
+            raf.setLength(raf.length() - 13);
+            raf.close();
+
+            t = new Table(db, "log_test");
+            if (!"one,\n\\".equals(t.select("a").field(1)) || !"2".equals(t.select("bee").field(1))) {
+                throw new Error("Part of a transaction replayed.");
+            }
+
+            // A transaction over two logged tables is replayed in either only
+            // if the database recorded it as committed.
+            other = new Table(db, "log_test_other", cols);
+            other.store();
+            tx = db.begin();
+            tx.update(t, "a", 1, "both");
+            tx.insert(other, new String[] {"z", "both"});
+            tx.commit();
+            t.close();
+            other.close();
+
+            Database fresh = new Database();
+            if (!"both".equals(fresh.table("log_test").select("a").field(1))
+                || fresh.table("log_test_other").select("z") == null) {
+                throw new Error("Committed transaction not replayed.");
+            }
+            fresh.table("log_test").close();
+            fresh.table("log_test_other").close();
+
+            t = new Table(db, "log_test");
+            other = new Table(db, "log_test_other");
+            tx = db.begin();
+            tx.update(t, "a", 1, "lost");
+            tx.delete(other, "z");
+            tx.commit();
+            t.close();
+            other.close();
+
+            // As if the crash came before the commit was recorded.
+            RandomAccessFile commits = new RandomAccessFile("db.commits", "rw");
+            commits.setLength(commits.length() - 8);
+            commits.close();
+
+            fresh = new Database();
+            if (!"both".equals(fresh.table("log_test").select("a").field(1))
+                || fresh.table("log_test_other").select("z") == null) {
+                throw new Error("Uncommitted transaction replayed.");
+            }
+            fresh.table("log_test").close();
+            fresh.table("log_test_other").close();
+
+            // Part of a failed write is cut back off the log, so the entries
+            // written after it are still replayed.
+            t = new Table(db, "log_test");
+            t.select("a").field(1, "before");
+            TableLog changes = t.log();
+            long length = changes.channel.size();
+            changes.channel.write(ByteBuffer.wrap(new byte[] {0, 0, 1}));
+            changes.undo(length);
+            t.select("a").field(1, "after");
+            t.close();
+
+            t = new Table(db, "log_test");
+            if (!"after".equals(t.select("a").field(1))) {
+                throw new Error("Entries after a failed write lost.");
+            }
+
+            // A log that can't be cut back refuses more entries until stored.
+            t.select("a").field(1, "kept");
+            t.log().channel.close();
+            boolean fail = false;
+            try {
+                t.select("a").field(1, "refused");
+            } catch (Error e) {
+                fail = true;
+            }
+            try {
+                t.select("a").field(1, "refused");
+                fail = false;
+            } catch (Error e) {
+                fail &= e.getMessage().startsWith("Table log can't be written");
+            }
+            if (!fail) {
+                throw new Error("Log written after a failed write.");
+            }
+            t.store();
+            t.select("a").field(1, "again");
+            t.close();
+
+            t = new Table(db, "log_test");
+            if (!"again".equals(t.select("a").field(1))) {
+                throw new Error("Log not usable once stored.");
+            }
+        } catch (IOException ioe) {
+            throw new Error("Log testing failed.", ioe);
+        } finally {
+            t.close();
+            if (other != null) {
+                other.close();
+            }
+            for (String name : new String[] {"log_test", "log_test_other"}) {
+                new File(name + ".txt").delete();
+                new File(name + ".log").delete();
+            }
+            new File("db.commits").delete();
+        }
+    }
+}
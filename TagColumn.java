@@ -0,0 +1,89 @@
+import java.util.Arrays;
+
+// Holds the values of a tag column as codes into the tag type's list of tags,
+// indexed by record slot. Codes are kept in a byte each if the type has few
+// enough tags, otherwise in two bytes.
+public class TagColumn extends Column {
+    private final Type type;
+    private byte[] small;
+    private char[] large;
+
+    public TagColumn(Type type) {
+        this.type = type;
+
+        if (type.codes() <= 0xff) {
+            small = new byte[16];
+        } else {
+            large = new char[16];
+        }
+    }
+
+    public void ensure(int slots) {
+        int length = small != null ? small.length : large.length;
+
+        if (slots > length) {
+            int size = Math.max(slots, length * 2);
+
+            if (small != null) {
+                small = Arrays.copyOf(small, size);
+            } else {
+                large = Arrays.copyOf(large, size);
+            }
+        }
+    }
+
+    // Returns the code of the value at the given slot.
+    public int code(int slot) {
+        if (small != null) {
+            return small[slot] & 0xff;
+        } else {
+            return large[slot];
+        }
+    }
+
+    // Stores a code at the given slot, returning false if it isn't a valid code.
+    public boolean code(int slot, int code) {
+        if (code < 0 || code > type.codes() || code > 0xffff) {
+            return false;
+        }
+
+        ensure(slot + 1);
+
+        if (small != null) {
+            small[slot] = (byte)code;
+        } else {
+            large[slot] = (char)code;
+        }
+
+        return true;
+    }
+
+    public String string(int slot) {
+        return type.tag(code(slot));
+    }
+
+    public boolean set(int slot, String value) {
+        return code(slot, type.code(value));
+    }
+
+    public void move(int from, int to) {
+        code(to, code(from));
+    }
+
+    public static void main(String[] args) {
+        Database db = new Database();
+        TagColumn c = new TagColumn(Type.type(db, "tag(red,green,blue)"));
+
+        if (!c.set(40, "blue") || !c.set(2, "") || c.set(3, "purple") || c.code(4, 4)) {
+            throw new Error("Tag stored incorrectly.");
+        }
+        if (c.code(40) != 3 || !"blue".equals(c.string(40)) || !"".equals(c.string(2))) {
+            throw new Error("Tag read incorrectly.");
+        }
+
+        c.move(40, 2);
+        if (!"blue".equals(c.string(2))) {
+            throw new Error("Tag moved incorrectly.");
+        }
+    }
+}
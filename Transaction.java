@@ -0,0 +1,705 @@
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+// A group of changes to one or more tables, made together on commit or not at
+// all. Reads through a transaction see the tables as they were when it began,
+// along with its own changes, however long it runs and without holding up
+// changes made meanwhile. Changes are checked as they are made, but only made
+// to the tables on commit, so rolling back just drops them. Committing fails,
+// changing nothing, if a row the transaction changed has been changed by
+// someone else since it began. Paged tables keep no old versions, so they are
+// read as they are now, and changes to them aren't checked in that way.
+public class Transaction {
+    private final Database db;
+    // The time of the snapshot the transaction reads.
+    private final long time;
+    private boolean done;
+    // The changes in the order they were made, to be made again on commit.
+    private final ArrayList<Change> changes;
+    // The rows changed in each table by key, with null for a removed key.
+    private final HashMap<Table, LinkedHashMap<String, String[]>> written;
+    // How many of the rows written refer to each key of each table.
+    private final HashMap<Table, HashMap<String, Integer>> referred;
+
+    Transaction(Database db) {
+        this.db = db;
+        time = db.snapshot();
+        changes = new ArrayList<Change>();
+        written = new HashMap<Table, LinkedHashMap<String, String[]>>();
+        referred = new HashMap<Table, HashMap<String, Integer>>();
+    }
+
+    private void check() {
+        if (done) {
+            throw new Error("Transaction already finished.");
+        }
+    }
+
+    // Returns the rows this transaction changed in a table, adding it if needed.
+    private LinkedHashMap<String, String[]> written(Table t) {
+        LinkedHashMap<String, String[]> rows = written.get(t);
+
+        if (rows == null) {
+            rows = new LinkedHashMap<String, String[]>();
+            written.put(t, rows);
+        }
+
+        return rows;
+    }
+
+    // Notes the row this transaction gives a key, or null if it removes it.
+    private void write(Table t, String key, String[] row) {
+        refer(t, written(t).put(key, row), -1);
+        refer(t, row, 1);
+    }
+
+    // Counts the keys a row refers to through ref() columns up or down.
+    private void refer(Table t, String[] row, int by) {
+        if (row == null) {
+            return;
+        }
+
+        for (int col = 0; col < row.length; col++) {
+            Table ref = t.type(col).ref();
+
+            if (ref != null && !row[col].isEmpty()) {
+                HashMap<String, Integer> counts = referred.get(ref);
+
+                if (counts == null) {
+                    counts = new HashMap<String, Integer>();
+                    referred.put(ref, counts);
+                }
+
+                Integer count = counts.get(row[col]);
+                int left = (count == null ? 0 : count) + by;
+
+                if (left == 0) {
+                    counts.remove(row[col]);
+                } else {
+                    counts.put(row[col], left);
+                }
+            }
+        }
+    }
+
+    // Returns true if a row refers to the given key of a table, as this
+    // transaction sees the tables.
+    private boolean referenced(Table t, String key) {
+        HashMap<String, Integer> counts = referred.get(t);
+
+        if (counts != null && counts.containsKey(key)) {
+            return true;
+        }
+
+        // Rows this transaction changed were counted above as they are now.
+        t.loadReferrers();
+        for (Record r : t.referrers(key)) {
+            LinkedHashMap<String, String[]> rows = written.get(r.table());
+
+            if (rows == null || !rows.containsKey(r.key())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Returns the row with the given key, or null if there isn't one.
+    public String[] select(Table t, String key) {
+        check();
+        LinkedHashMap<String, String[]> rows = written.get(t);
+
+        if (rows != null && rows.containsKey(key)) {
+            String[] row = rows.get(key);
+            return row == null ? null : Arrays.copyOf(row, row.length);
+        }
+
+        return t.select(key, time);
+    }
+
+    // Returns the rows of a table. Rows changed by this transaction are in
+    // their place, and rows it added come last.
+    public Iterator<String[]> scan(Table t) {
+        check();
+        final Iterator<String[]> rows = t.scan(time);
+        final LinkedHashMap<String, String[]> changed = written.containsKey(t)
+            ? written.get(t) : new LinkedHashMap<String, String[]>();
+        final HashSet<String> seen = new HashSet<String>();
+
+        return new Iterator<String[]>() {
+            private Iterator<Map.Entry<String, String[]>> added;
+            private String[] next;
+
+            public boolean hasNext() {
+                while (next == null && rows.hasNext()) {
+                    String[] row = rows.next();
+
+                    if (changed.containsKey(row[0])) {
+                        seen.add(row[0]);
+                        row = changed.get(row[0]);
+                    }
+
+                    next = row == null ? null : Arrays.copyOf(row, row.length);
+                }
+
+                if (next == null && added == null) {
+                    added = changed.entrySet().iterator();
+                }
+
+                while (next == null && added != null && added.hasNext()) {
+                    Map.Entry<String, String[]> e = added.next();
+
+                    if (e.getValue() != null && !seen.contains(e.getKey())) {
+                        next = Arrays.copyOf(e.getValue(), e.getValue().length);
+                    }
+                }
+
+                return next != null;
+            }
+
+            public String[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                String[] ret = next;
+                next = null;
+                return ret;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Prints a table as this transaction sees it.
+    public void print(Table t, PrintStream out) {
+        ArrayList<String[]> rows = new ArrayList<String[]>();
+        Iterator<String[]> it = scan(t);
+
+        while (it.hasNext()) {
+            rows.add(it.next());
+        }
+
+        t.print(out, rows);
+    }
+
+    // Adds a row. Missing values at the end are left blank.
+    public void insert(Table t, String[] values) {
+        check();
+        String[] row = row(t, values);
+
+        if (select(t, row[0]) != null) {
+            throw new Error("Key already in use.");
+        }
+
+        write(t, row[0], row);
+        changes.add(new Insert(t, row));
+    }
+
+    // Replaces the values of the row with the key of the given values.
+    // Nothing is changed unless all the values can be stored. The row is
+    // changed in place rather than deleted, so rows in other tables may
+    // still refer to it.
+    public void replace(Table t, String[] values) {
+        check();
+        String[] row = row(t, values);
+        String[] old = select(t, row[0]);
+
+        if (old == null) {
+            throw new Error("No such record.");
+        }
+
+        write(t, row[0], row);
+
+        for (int col = 1; col < row.length; col++) {
+            if (!row[col].equals(old[col])) {
+                changes.add(new Update(t, row[0], col, row[col]));
+            }
+        }
+    }
+
+    // Checks the given values and returns them as a full row of the table,
+    // with any missing values left blank.
+    private String[] row(Table t, String[] values) {
+        if (values == null || values.length == 0) {
+            throw new Error("Attempted to store a null value.");
+        } else if (values.length > t.columns()) {
+            throw new Error("Record length exceeds table size.");
+        }
+
+        String[] row = new String[t.columns()];
+        Arrays.fill(row, "");
+
+        for (int col = 0; col < values.length; col++) {
+            checkValue(t, col, values[col]);
+            row[col] = values[col];
+        }
+
+        return row;
+    }
+
+    // Changes one field of the row with the given key.
+    public void update(Table t, String key, int col, String value) {
+        check();
+        String[] row = select(t, key);
+
+        if (row == null) {
+            throw new Error("No such record.");
+        }
+
+        checkValue(t, col, value);
+
+        if (col == 0 && !key.equals(value)) {
+            if (select(t, value) != null) {
+                throw new Error("Key already in use.");
+            } else if (referenced(t, key)) {
+                throw new Error("Record is still referenced.");
+            }
+        }
+
+        row[col] = value;
+
+        if (col == 0) {
+            write(t, key, null);
+        }
+        write(t, row[0], row);
+        changes.add(new Update(t, key, col, value));
+    }
+
+    public void delete(Table t, String key) {
+        check();
+
+        if (select(t, key) == null) {
+            throw new Error("No such record.");
+        } else if (referenced(t, key)) {
+            throw new Error("Record is still referenced.");
+        }
+
+        write(t, key, null);
+        changes.add(new Delete(t, key));
+    }
+
+    // Checks a value fits a column. A ref() value must be the key of a row
+    // as this transaction sees the table it refers to.
+    private void checkValue(Table t, int col, String value) {
+        Type type = t.type(col);
+        Table ref = type.ref();
+
+        if (value == null) {
+            throw new Error("Attempted to store a null value.");
+        } else if (ref != null ? !value.isEmpty() && select(ref, value) == null : !type.allowed(value)) {
+            throw new Error("Value not of type " + type.toString());
+        }
+    }
+
+    // Makes the transaction's changes to the tables. Every table changed is
+    // locked first, so no one sees some of the changes without the rest.
+    public void commit() {
+        if (done) {
+            throw new Error("Transaction already finished.");
+        }
+
+        done = true;
+
+        try {
+            if (!changes.isEmpty()) {
+                apply();
+            }
+        } finally {
+            db.release(time);
+        }
+    }
+
+    // Drops the transaction's changes.
+    public void rollback() {
+        if (done) {
+            throw new Error("Transaction already finished.");
+        }
+
+        done = true;
+        db.release(time);
+    }
+
+    private void apply() {
+        Table[] tables = written.keySet().toArray(new Table[written.size()]);
+        Arrays.sort(tables, new LockOrder());
+        long[] stamps = new long[tables.length];
+        long[] counts = new long[tables.length];
+        int locked = 0;
+
+        try {
+            for (; locked < tables.length; locked++) {
+                stamps[locked] = tables[locked].writeLock();
+            }
+
+            // Each row changed must be as it was when the transaction began.
+            for (Table t : tables) {
+                for (String key : written.get(t).keySet()) {
+                    if (!Arrays.equals(t.select(key, Long.MAX_VALUE), t.select(key, time))) {
+                        throw new Error("Transaction conflicts with a later change.");
+                    }
+                }
+            }
+
+            long now = db.tick();
+            for (Table t : tables) {
+                t.committing(now);
+            }
+
+            // Changes to several logged tables are only kept after a crash once
+            // every log has them all and the database has recorded the commit.
+            // That is done before anyone else can see the changes, so no later
+            // change can depend on them without them being kept.
+            int logs = 0;
+            for (Table t : tables) {
+                logs += t.hasLog() ? 1 : 0;
+            }
+
+            long shared = logs > 1 ? db.commitId() : 0;
+            for (Table t : tables) {
+                t.logBegin(shared);
+            }
+
+            // A change can still fail, for instance deleting a key referred to
+            // from another table, so undo any already made.
+            ArrayList<Change> made = new ArrayList<Change>();
+            try {
+                for (Change c : changes) {
+                    c.apply();
+                    made.add(c);
+                }
+            } catch (Error e) {
+                for (int i = made.size() - 1; i >= 0; i--) {
+                    made.get(i).undo();
+                }
+
+                throw e;
+            } finally {
+                for (Table t : tables) {
+                    t.logEnd();
+                }
+            }
+
+            if (shared != 0) {
+                for (Table t : tables) {
+                    t.flushLog();
+                }
+
+                db.committed(shared);
+            }
+
+            // Each change is logged, so a table is only stored once its log
+            // has grown enough, as for changes made outside a transaction.
+            for (Table t : tables) {
+                t.committing(0);
+                t.logged();
+            }
+        } finally {
+            for (int i = locked - 1; i >= 0; i--) {
+                tables[i].committing(0);
+
+                if (stamps[i] != 0) {
+                    counts[i] = tables[i].release(stamps[i]);
+                }
+            }
+        }
+
+        // Every lock is released before waiting for the logs, so others can
+        // carry on, and a failure writing one log can't leave any locked.
+        Error failed = null;
+        for (int i = 0; i < tables.length; i++) {
+            try {
+                tables[i].sync(counts[i]);
+            } catch (Error e) {
+                if (failed == null) {
+                    failed = e;
+                }
+            }
+        }
+
+        if (failed != null) {
+            throw failed;
+        }
+    }
+
+    // Returns how far a table is from the tables it refers to through ref()
+    // columns. A table checks the tables it refers to while holding its own
+    // write lock, so those are locked after it to avoid deadlock.
+    private static int depth(Table t, int limit) {
+        int depth = 0;
+
+        for (int col = 0; col < t.columns() && limit > 0; col++) {
+            Table ref = t.type(col).ref();
+
+            if (ref != null && ref != t) {
+                depth = Math.max(depth, depth(ref, limit - 1) + 1);
+            }
+        }
+
+        return depth;
+    }
+
+    // Orders tables that refer to others before them, then by name.
+    private static class LockOrder implements Comparator<Table> {
+        public int compare(Table a, Table b) {
+            int depthA = depth(a, 64);
+            int depthB = depth(b, 64);
+
+            if (depthA != depthB) {
+                return depthB - depthA;
+            }
+
+            return a.name().compareTo(b.name());
+        }
+    }
+
+    // A change to make on commit, and how to undo it if a later one fails.
+    private abstract static class Change {
+        protected final Table table;
+
+        public Change(Table table) {
+            this.table = table;
+        }
+
+        public abstract void apply();
+
+        public abstract void undo();
+    }
+
+    private static class Insert extends Change {
+        private final String[] values;
+
+        public Insert(Table table, String[] values) {
+            super(table);
+            this.values = values;
+        }
+
+        public void apply() {
+            new Record(table, values);
+        }
+
+        public void undo() {
+            table.select(values[0]).delete();
+        }
+    }
+
+    private static class Update extends Change {
+        private final String key;
+        private final int col;
+        private final String value;
+        private String old;
+
+        public Update(Table table, String key, int col, String value) {
+            super(table);
+            this.key = key;
+            this.col = col;
+            this.value = value;
+        }
+
+        public void apply() {
+            Record r = table.select(key);
+            old = r.field(col);
+            r.field(col, value);
+        }
+
+        public void undo() {
+            table.select(col == 0 ? value : key).field(col, old);
+        }
+    }
+
+    private static class Delete extends Change {
+        private final String key;
+        private String[] old;
+
+        public Delete(Table table, String key) {
+            super(table);
+            this.key = key;
+        }
+
+        public void apply() {
+            Record r = table.select(key);
+            old = new String[r.fields()];
+
+            for (int col = 0; col < old.length; col++) {
+                old[col] = r.field(col);
+            }
+
+            r.delete();
+        }
+
+        public void undo() {
+            new Record(table, old);
+        }
+    }
+
+    public static void main(String[] args) {
+        Database db = new Database();
+        Type[] types = {Type.type(db, "string"), Type.type(db, "integer")};
+        Table accounts = new Table(db, "tx_accounts", new String[] {"Key", "Balance"}, types);
+        Table log = new Table(db, "tx_log", new String[] {"Key", "Note"});
+        new Record(accounts, new String[] {"a", "100"});
+        new Record(accounts, new String[] {"b", "50"});
+
+        // A transfer seen by no one until committed.
+        Transaction tx = db.begin();
+        tx.update(accounts, "a", 1, "70");
+        tx.update(accounts, "b", 1, "80");
+        tx.insert(log, new String[] {"1", "a to b"});
+        if (!"70".equals(tx.select(accounts, "a")[1]) || !"100".equals(accounts.select("a").field(1))
+            || log.rows() != 0) {
+            throw new Error("Uncommitted change seen.");
+        }
+
+        // A reader begun before the commit keeps its view after.
+        Transaction reader = db.begin();
+        tx.commit();
+        if (!"80".equals(accounts.select("b").field(1)) || log.select("1") == null) {
+            throw new Error("Committed change not made.");
+        }
+        if (!"50".equals(reader.select(accounts, "b")[1]) || reader.select(log, "1") != null) {
+            throw new Error("Snapshot changed by commit.");
+        }
+
+        // Later changes, renames and deletes are hidden from the snapshot too.
+        accounts.select("a").field(0, "c");
+        accounts.select("b").delete();
+        new Record(accounts, new String[] {"a", "5"});
+        int rows = 0;
+        Iterator<String[]> it = reader.scan(accounts);
+        while (it.hasNext()) {
+            String[] row = it.next();
+            if (!row[1].equals(row[0].equals("a") ? "100" : "50")) {
+                throw new Error("Scan saw a later change.");
+            }
+            rows++;
+        }
+        if (rows != 2 || !"100".equals(reader.select(accounts, "a")[1])
+            || reader.select(accounts, "c") != null) {
+            throw new Error("Snapshot rows incorrect.");
+        }
+        reader.rollback();
+
+        // Changing a row changed since the transaction began fails whole.
+        tx = db.begin();
+        tx.insert(log, new String[] {"2", "c to a"});
+        tx.update(accounts, "c", 1, "60");
+        accounts.select("c").field(1, "65");
+        boolean fail = true;
+        try {
+            tx.commit();
+        } catch (Error e) {
+            fail = !e.getMessage().equals("Transaction conflicts with a later change.");
+        }
+        if (fail || log.select("2") != null || !"65".equals(accounts.select("c").field(1))) {
+            throw new Error("Conflicting transaction committed.");
+        }
+
+        // A change failing on commit undoes the ones before it.
+        types = new Type[] {Type.type(db, "string"), Type.type(db, "ref(tx_accounts)")};
+        Table owners = new Table(db, "tx_owners", new String[] {"Key", "Account"}, types);
+        new Record(owners, new String[] {"x", "c"});
+        tx = db.begin();
+        tx.update(accounts, "a", 1, "6");
+        tx.delete(owners, "x");
+        tx.delete(accounts, "c");
+        new Record(owners, new String[] {"y", "c"});
+        fail = true;
+        try {
+            tx.commit();
+        } catch (Error e) {
+            fail = !e.getMessage().equals("Record is still referenced.");
+        }
+        if (fail || !"5".equals(accounts.select("a").field(1)) || accounts.select("c") == null
+            || owners.select("x") == null) {
+            throw new Error("Failed transaction not undone.");
+        }
+        owners.select("y").delete();
+
+        // References are checked against the transaction's own changes, as
+        // the changes are made.
+        tx = db.begin();
+        fail = true;
+        try {
+            tx.delete(accounts, "c");
+        } catch (Error e) {
+            fail = !e.getMessage().equals("Record is still referenced.");
+        }
+        tx.insert(accounts, new String[] {"e", "1"});
+        tx.insert(owners, new String[] {"z", "e"});
+        tx.delete(accounts, "a");
+        try {
+            tx.insert(owners, new String[] {"w", "a"});
+            fail = true;
+        } catch (Error e) {
+            fail |= !e.getMessage().startsWith("Value not of type");
+        }
+        try {
+            tx.update(accounts, "e", 0, "f");
+            fail = true;
+        } catch (Error e) {
+            fail |= !e.getMessage().equals("Record is still referenced.");
+        }
+        tx.delete(owners, "x");
+        tx.update(accounts, "c", 0, "g");
+        tx.commit();
+        if (fail || !"e".equals(owners.select("z").field(1)) || accounts.select("g") == null
+            || accounts.select("a") != null) {
+            throw new Error("References checked incorrectly.");
+        }
+        new Record(accounts, new String[] {"a", "5"});
+        new Record(accounts, new String[] {"c", "70"});
+        new Record(owners, new String[] {"x", "c"});
+
+        // Replacing a row others refer to keeps it, so is allowed.
+        tx = db.begin();
+        tx.replace(accounts, new String[] {"c", "70"});
+        tx.commit();
+        if (!"70".equals(accounts.select("c").field(1)) || owners.select("x") == null) {
+            throw new Error("Referenced row not replaced.");
+        }
+
+        // Rolled back changes are never seen.
+        tx = db.begin();
+        tx.delete(accounts, "a");
+        tx.insert(accounts, new String[] {"d"});
+        if (tx.select(accounts, "a") != null || !"".equals(tx.select(accounts, "d")[1])) {
+            throw new Error("Transaction doesn't see its own changes.");
+        }
+        tx.rollback();
+        if (accounts.select("a") == null || accounts.select("d") != null || db.snapshots()) {
+            throw new Error("Rolled back transaction changed tables.");
+        }
+
+        // A commit that fills a table's log stores the table, as changes made
+        // outside a transaction do.
+        Table big = new Table(db, "tx_big", new String[] {"Key"});
+        big.store();
+
+        try {
+            tx = db.begin();
+            for (int i = 0; i < 10000; i++) {
+                tx.insert(big, new String[] {"k" + i});
+            }
+            tx.commit();
+
+            if (new File("tx_big.log").length() > 1000 || new Database().table("tx_big").rows() != 10000) {
+                throw new Error("Table not stored once its log filled.");
+            }
+        } finally {
+            big.close();
+            new File("tx_big.txt").delete();
+            new File("tx_big.log").delete();
+        }
+    }
+}
@@ -1,18 +1,24 @@
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
-public class Type {
+public class Type implements Comparator<String> {
     // Map database and names to type objects. Ref will need an object per db and table.
-    private static final HashMap<TypeKey, Type> typeCache = new HashMap<TypeKey, Type>();
+    // Concurrent, as a database may load several tables at once.
+    private static final ConcurrentHashMap<TypeKey, Type> typeCache =
+        new ConcurrentHashMap<TypeKey, Type>();
 
     // One or more strings not containing ',' separated with ,
     private static final Pattern TAGPAT = Pattern.compile("[^,]+(,[^,]+)*");
     private static final Pattern INTPAT = Pattern.compile("-?[0-9]+");
 
     private final TYPE type;
-    private final HashSet<String> tags;
+    // Tags in the order given, and the code for each, which is its position
+    // counting from 1. Code 0 is used for blank.
+    private final String[] tagList;
+    private final HashMap<String, Integer> tags;
     private final Table ref;
     private final String name;
 
@@ -22,15 +28,17 @@ public class Type {
         this.type = type;
 
         if (tags != null) {
-            this.tags = new HashSet<String>();
+            this.tagList = tags;
+            this.tags = new HashMap<String, Integer>();
 
-            for (String tag : tags) {
-                // Add returns false if the element already exists.
-                if (!this.tags.add(tag)) {
+            for (int i = 0; i < tags.length; i++) {
+                // Put returns the previous value if the key already exists.
+                if (this.tags.put(tags[i], i + 1) != null) {
                     throw new Error("Duplicate tag.");
                 }
             }
         } else {
+            this.tagList = null;
             this.tags = null;
         }
 
@@ -44,7 +52,7 @@ public class Type {
         }
         
         // Always allow blank
-        if (value == "") {
+        if (value.isEmpty()) {
             return true;
         }
         
@@ -55,7 +63,7 @@ public class Type {
         case INT:
             return INTPAT.matcher(value).matches();
         case TAG:
-            return tags.contains(value);
+            return tags.containsKey(value);
         case REF:
             return ref.select(value) != null;
         }
@@ -63,6 +71,75 @@ public class Type {
         throw new Error("Could not check value against type.");
     }
 
+    // Orders values of this type: numerically for integers, in the order the
+    // tags were given for tags, and by String otherwise. Blank comes first.
+    // Values that aren't allowed by the type come last.
+    public int compare(String a, String b) {
+        if (a.isEmpty() || b.isEmpty()) {
+            return (a.isEmpty() ? 0 : 1) - (b.isEmpty() ? 0 : 1);
+        }
+
+        switch (type) {
+        case INT:
+            boolean aInt = INTPAT.matcher(a).matches();
+            boolean bInt = INTPAT.matcher(b).matches();
+
+            if (aInt && bInt) {
+                return compareInts(a, b);
+            } else if (aInt || bInt) {
+                return aInt ? -1 : 1;
+            }
+            break;
+        case TAG:
+            int aCode = code(a);
+            int bCode = code(b);
+
+            if (aCode >= 0 && bCode >= 0) {
+                return aCode - bCode;
+            } else if (aCode >= 0 || bCode >= 0) {
+                return aCode >= 0 ? -1 : 1;
+            }
+            break;
+        }
+
+        return a.compareTo(b);
+    }
+
+    // Compares two integers of any length without parsing them.
+    private static int compareInts(String a, String b) {
+        int aStart = digits(a);
+        int bStart = digits(b);
+        int aLen = a.length() - aStart;
+        int bLen = b.length() - bStart;
+
+        // Zero has no digits left, and no sign whether written as -0 or not.
+        boolean aNeg = a.charAt(0) == '-' && aLen > 0;
+        boolean bNeg = b.charAt(0) == '-' && bLen > 0;
+
+        if (aNeg != bNeg) {
+            return aNeg ? -1 : 1;
+        }
+
+        int c = aLen - bLen;
+        for (int i = 0; c == 0 && i < aLen; i++) {
+            c = a.charAt(aStart + i) - b.charAt(bStart + i);
+        }
+
+        return aNeg ? -c : c;
+    }
+
+    // Returns the index of the first significant digit, skipping the sign and
+    // leading zeros.
+    private static int digits(String s) {
+        int i = s.charAt(0) == '-' ? 1 : 0;
+
+        while (i < s.length() && s.charAt(i) == '0') {
+            i++;
+        }
+
+        return i;
+    }
+
     public static Type type(Database db, String name) {
         TYPE parsed = parseName(name);
         TypeKey key = new TypeKey(db, parsed, name);
@@ -76,7 +153,7 @@ public class Type {
                 ret = new Type(name, parsed, null, null);
                 break;
             case REF:
-                Table ref = db.table(name.substring(4, name.length() - 1));
+                Table ref = db.table(refName(name));
 
                 if (ref != null) {
                     ret = new Type(name, parsed, null, ref);
@@ -97,16 +174,75 @@ public class Type {
                 break;
             }
 
-            typeCache.put(key, ret);
+            // Another thread may have created the same type meanwhile.
+            Type cached = typeCache.putIfAbsent(key, ret);
+            if (cached != null) {
+                ret = cached;
+            }
         }
 
         return ret;
     }
 
+    // Returns the name of the table referenced by the named type, or null if
+    // it isn't a valid ref type name.
+    static String refName(String name) {
+        if (name.length() > 5 && name.startsWith("ref(") && name.endsWith(")")) {
+            return name.substring(4, name.length() - 1);
+        }
+
+        return null;
+    }
+
+    // Returns the code for a value of a tag type: 0 for blank, or -1 if the
+    // value isn't one of the tags.
+    int code(String value) {
+        if (value.isEmpty()) {
+            return 0;
+        }
+
+        Integer code = tags.get(value);
+        return code == null ? -1 : code;
+    }
+
+    // Returns the number of tags in a tag type, which is also the largest code.
+    int codes() {
+        return tagList.length;
+    }
+
+    // Returns the tag with the given code.
+    String tag(int code) {
+        return code == 0 ? "" : tagList[code - 1];
+    }
+
+    // Returns a store to hold a column of this type, or null if values of
+    // this type are best kept in the records.
+    Column column() {
+        switch (type) {
+        case INT:
+            return new IntColumn();
+        case TAG:
+            return new TagColumn(this);
+        default:
+            return null;
+        }
+    }
+
+    // Returns the table referenced by a ref type, or null for other types.
+    Table ref() {
+        return ref;
+    }
+
     boolean rightAligned() {
         return type == TYPE.INT;
     }
 
+    // Returns true for integer types, whose values compare as numbers, so
+    // different Strings such as "7" and "007" can be equal.
+    boolean integer() {
+        return type == TYPE.INT;
+    }
+
     private static TYPE parseName(String name) {
         if ("string".equals(name)) {
             return TYPE.STR;
@@ -144,6 +280,17 @@ public class Type {
         if (tag0.allowed("maybe")) {
             throw new Error("Invalid tag accepted.");
         }
+        if (tag0.code("no") != 2 || !"no".equals(tag0.tag(2)) || tag0.code("maybe") != -1) {
+            throw new Error("Tag codes incorrect.");
+        }
+        if (tag0.compare("yes", "no") >= 0 || tag0.compare("", "yes") >= 0) {
+            throw new Error("Tag ordering incorrect.");
+        }
+        if (int0.compare("9", "10") >= 0 || int0.compare("-10", "-9") >= 0
+            || int0.compare("007", "7") != 0 || int0.compare("-0", "0") != 0
+            || int0.compare("-1", "0") >= 0 || int0.compare("", "-5") >= 0) {
+            throw new Error("Integer ordering incorrect.");
+        }
 
         boolean dupErr = true;
 